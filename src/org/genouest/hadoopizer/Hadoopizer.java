@@ -19,22 +19,32 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 import org.apache.hadoop.util.GenericOptionsParser;
+import org.genouest.hadoopizer.input.CombinedInputFormat;
 import org.genouest.hadoopizer.input.HadoopizerInputFormat;
+import org.genouest.hadoopizer.input.HadoopizerRecordReader;
 import org.genouest.hadoopizer.input.MultipleInputFormat;
+import org.genouest.hadoopizer.input.PairedFastqInputFormat;
 import org.genouest.hadoopizer.input.TaggedSequenceFileInputFormat;
 import org.genouest.hadoopizer.io.ObjectWritableComparable;
+import org.genouest.hadoopizer.io.SequenceRecordArrayWritable;
+import org.genouest.hadoopizer.io.SequenceRecordWritable;
 import org.genouest.hadoopizer.mapper.IdentityMapper;
 import org.genouest.hadoopizer.mapper.ShellMapper;
+import org.genouest.hadoopizer.mapper.WorkerMapper;
 import org.genouest.hadoopizer.output.HadoopizerOutputFormat;
 import org.genouest.hadoopizer.reducer.JoinReducer;
 import org.genouest.hadoopizer.reducer.ShellReducer;
@@ -258,8 +268,18 @@ public class Hadoopizer {
         SplitableJobInput splitable = (SplitableJobInput) config.getSplitableInput();
         boolean joinData = splitable.needJoin();
         
+        // Before creating any job: the headers are added to the distributed cache
+        extractInputHeaders(splitable);
+        
+        boolean coSplit = joinData && !splitable.dataAlreadyJoined() && PairedFastqInputFormat.canCoSplit(splitable, jobConf);
+        
         Path inputPath;
-        if (joinData && !splitable.dataAlreadyJoined()) {
+        if (coSplit) {
+            // The files are in the same order, no need to join them
+            logger.info("Splitting paired input files together, without joining them");
+            inputPath = new Path(splitable.getFiles().get(0).getUrl());
+        }
+        else if (joinData && !splitable.dataAlreadyJoined()) {
             // There are multiple input data files, join them first in a specific map/reduce job
             inputPath = new Path(jobConf.get("hadoopizer.hdfs.tmp.dir") + Path.SEPARATOR + "temp_joined_data");
             
@@ -294,7 +314,10 @@ public class Hadoopizer {
         job.setJarByClass(Hadoopizer.class);
         
         // Define input and output data format
-        if (joinData) {
+        if (coSplit) {
+            job.setInputFormatClass(PairedFastqInputFormat.class);
+        }
+        else if (joinData) {
             job.setInputFormatClass(SequenceFileInputFormat.class);
         }
         else {
@@ -303,6 +326,11 @@ public class Hadoopizer {
                 // Loading from a sequence file
                 job.setInputFormatClass(TaggedSequenceFileInputFormat.class);
             }
+            else if (jobConf.getLong("hadoopizer.combine.size", 0) > 0) {
+                // Pack several small files in each split
+                logger.info("Combining input files in splits of " + jobConf.getLong("hadoopizer.combine.size", 0) + " bytes");
+                job.setInputFormatClass(CombinedInputFormat.class);
+            }
             else {
                 HadoopizerInputFormat iFormat = file.getFileInputFormat();
                 job.setInputFormatClass(iFormat.getClass());
@@ -327,6 +355,14 @@ public class Hadoopizer {
         
         job.setOutputValueClass(ObjectWritable.class);
         
+        // Shuffle the records in their compact form if all the outputs are sequence records
+        boolean compactOutput = !outputs.isEmpty();
+        for (JobOutput jobOutput : outputs) {
+            compactOutput &= !jobOutput.isSaveAsSequence() && jobOutput.getFileInputFormat().hasSequenceRecords(jobConf);
+        }
+        if (compactOutput)
+            job.setMapOutputValueClass(SequenceRecordWritable.class);
+        
         // Output compression if asked
         FileOutputFormat.setCompressOutput(job, config.hasOutputCompressor());
         if (config.hasOutputCompressor())
@@ -336,7 +372,10 @@ public class Hadoopizer {
         FileInputFormat.setInputPaths(job, inputPath);
 
         // Set the Mapper class
-        job.setMapperClass(ShellMapper.class);
+        if (config.hasWorker())
+            job.setMapperClass(WorkerMapper.class);
+        else
+            job.setMapperClass(ShellMapper.class);
 
         // Set the reducer class
         job.setReducerClass(ShellReducer.class); // TODO create a specific one if some outputs types can be reduced before writing
@@ -347,6 +386,87 @@ public class Hadoopizer {
         return job;
     }
 
+    /**
+     * Read the header of each file of the splitable input, and add it to the distributed cache.
+     * This way, the map tasks read the headers from their local disk instead of racing to write them on hdfs.
+     * If a header can't be extracted, it is written by the first task reading the file, as before.
+     *
+     * @param splitable the splitable input
+     * @throws IOException
+     */
+    private void extractInputHeaders(SplitableJobInput splitable) throws IOException {
+        
+        int nbCached = 0;
+        int nb = 0;
+        for (JobInputFile file : splitable.getFiles()) {
+            Path headerFile = HadoopizerInputFormat.getInputHeaderFile(jobConf, splitable.getId(), nb);
+            nb++;
+            
+            if (file.isLoadAsSequence()) // Already joined: the headers were saved by the join job
+                continue;
+            
+            Path dataFile = getFirstDataFile(new Path(file.getUrl()));
+            if (dataFile == null)
+                continue;
+            
+            try {
+                FileSystem fs = headerFile.getFileSystem(jobConf);
+                fs.delete(headerFile, false);
+                
+                HadoopizerInputFormat inf = file.getFileInputFormat();
+                inf.setHeaderTempFile(headerFile);
+                
+                long length = dataFile.getFileSystem(jobConf).getFileStatus(dataFile).getLen();
+                FileSplit split = new FileSplit(dataFile, 0, length, null);
+                TaskAttemptContext context = new TaskAttemptContext(jobConf, new TaskAttemptID());
+                HadoopizerRecordReader reader = (HadoopizerRecordReader) inf.createRecordReader(split, context);
+                reader.initialize(split, context);
+                reader.extractHeader();
+                reader.close();
+                
+                if (fs.exists(headerFile)) {
+                    DistributedCache.addCacheFile(fs.makeQualified(headerFile).toUri(), jobConf);
+                    nbCached++;
+                }
+            } catch (InterruptedException e) {
+                logger.warning("Failed to extract the header of " + dataFile + ", it will be extracted by the map tasks: " + e.getMessage());
+            } catch (IOException e) {
+                logger.warning("Failed to extract the header of " + dataFile + ", it will be extracted by the map tasks: " + e.getMessage());
+            }
+        }
+        
+        if (nbCached > 0) {
+            logger.info("Added the header of " + nbCached + " input files to the distributed cache");
+            jobConf.setBoolean("hadoopizer.input.header.cached", true);
+        }
+    }
+    
+    /**
+     * Find the first file read by FileInputFormat for an input path
+     *
+     * @param path a file, a directory or a glob
+     * @return the first file, null if there is none
+     * @throws IOException
+     */
+    private Path getFirstDataFile(Path path) throws IOException {
+        
+        FileSystem fs = path.getFileSystem(jobConf);
+        FileStatus[] matches = fs.globStatus(path);
+        if (matches == null)
+            return null;
+        
+        for (FileStatus match : matches) {
+            FileStatus[] files = match.isDir() ? fs.listStatus(match.getPath()) : new FileStatus[] {match};
+            for (FileStatus file : files) {
+                String name = file.getPath().getName();
+                if (!file.isDir() && !name.startsWith("_") && !name.startsWith("."))
+                    return file.getPath();
+            }
+        }
+        
+        return null;
+    }
+
     /**
      * Launch a Hadoop job to join data from multiple input file. The joined data will be stored to the given path.
      *
@@ -378,6 +498,17 @@ public class Hadoopizer {
         job.setOutputKeyClass(ObjectWritableComparable.class);
         job.setOutputValueClass(ObjectWritable.class);
         
+        // Shuffle and store the records in their compact form if all the input files are read as sequence records
+        boolean compact = true;
+        for (JobInputFile file : splitable.getFiles()) {
+            compact &= !file.isLoadAsSequence() && file.getFileInputFormat().hasSequenceRecords(jobConf);
+        }
+        if (compact) {
+            logger.info("Joining the records as " + SequenceRecordWritable.class.getSimpleName());
+            job.setMapOutputValueClass(SequenceRecordWritable.class);
+            job.setOutputValueClass(SequenceRecordArrayWritable.class);
+        }
+        
         // Set output path
         FileOutputFormat.setOutputPath(job, tempOutput);
 
@@ -426,6 +557,30 @@ public class Hadoopizer {
         jobConf.set("hadoopizer.job.name", "Hadoopizer conf");
         jobConf.set("hadoopizer.shell.interpreter", "#!/bin/bash");
         jobConf.set("hadoopizer.static.data.link.prefix", "static_data__");
+        jobConf.setInt("hadoopizer.shell.log.lines", 1000); // Number of stdout/stderr lines logged for each command
+        jobConf.setInt("hadoopizer.shell.log.tail", 50); // Number of last stdout/stderr lines kept for diagnostics
+        jobConf.setInt("hadoopizer.shell.log.line.length", 1024); // Longer stdout/stderr lines are truncated
+        jobConf.setLong("hadoopizer.batch.records", 0); // Maximum number of records per command execution (0 for the whole split)
+        jobConf.setLong("hadoopizer.batch.bytes", 0); // Maximum size of the input chunk per command execution (0 for the whole split)
+        jobConf.setInt("hadoopizer.shell.processes", 1); // Number of commands running concurrently in each map task
+        jobConf.setInt("hadoopizer.shell.threads", 0); // Value of ${threads} (0 to share the cores of the node between the commands)
+        jobConf.setLong("hadoopizer.scratch.shm.budget", 0); // Memory (in bytes) used for input chunks in hadoopizer.scratch.shm.dir (0 to always use the local disks)
+        jobConf.set("hadoopizer.scratch.shm.dir", "/dev/shm"); // tmpfs directory for the input chunks fitting in the memory budget
+        jobConf.setLong("hadoopizer.shell.sample.interval", 1000); // Time (ms) between two samples of the resources used by a command (0 to disable)
+        jobConf.setBoolean("hadoopizer.checkpoint", false); // Save the outputs of each batch so that a new attempt can skip it
+        jobConf.setLong("hadoopizer.fasta.spill.size", 0); // Fasta sequences longer than this (in bytes) are kept in a local file instead of memory (0 to always use memory)
+        jobConf.setLong("hadoopizer.fasta.isolate.size", 0); // Fasta sequences with at least this number of residues get their own split when planning splits by bases or records (0 to disable)
+        jobConf.setLong("hadoopizer.split.sample.size", 16 * 1024 * 1024); // Bytes read at the beginning of the input to plan splits with a given number of records or bases
+        jobConf.setInt("hadoopizer.bam.compression.level", 5); // Compression level of the BAM files (0-9)
+        jobConf.setInt("hadoopizer.bam.compression.threads", 2); // Number of threads compressing each BAM file
+        jobConf.setLong("hadoopizer.combine.size", 0); // Maximum size of a split packing several input files (0 to have one split per file or block)
+        jobConf.setBoolean("hadoopizer.paired.cosplit", true); // Split plain paired fastq files together instead of joining them by record name
+        jobConf.setInt("hadoopizer.index.interval", 1000); // Number of records between two positions of the index of fastq and fasta files
+        jobConf.setLong("hadoopizer.fasta.index.bases", 1000000); // Maximum number of residues between two positions of the index of fasta files
+        jobConf.setBoolean("hadoopizer.index.save", true); // Save the index of the input files in the hdfs work dir, to reuse it in the next jobs
+        jobConf.setBoolean("hadoopizer.index.next.to.input", false); // Save the index next to the input files instead (in their directory)
+        if (config.hasWorker())
+            jobConf.setInt("mapred.job.reuse.jvm.num.tasks", -1); // Keep the workers alive between map tasks
         
         // Then load other options from conf file (overriding if needed)
         for (Map.Entry<String, String> e : config.getHadoopConfig().entrySet()) {
@@ -526,4 +681,33 @@ public class Hadoopizer {
 
         return tempFile;
     }
+
+    /**
+     * Create a new named pipe (FIFO) with a unique name.
+     * @param directory parent directory of the named pipe to create
+     * @param prefix prefix of the named pipe
+     * @param suffix suffix of the named pipe
+     * @return the new named pipe
+     * @throws IOException if there is an error creating the named pipe
+     */
+    public static File createTempFifo(File directory, String prefix, String suffix) throws IOException {
+
+        // Reserve a unique name, then replace the file by a named pipe
+        File fifo = createTempFile(directory, prefix, suffix);
+        if (!fifo.delete())
+            throw new IOException("Failed to create named pipe " + fifo.getAbsolutePath());
+
+        Process mkfifo = Runtime.getRuntime().exec(new String[] {"mkfifo", fifo.getAbsolutePath()});
+        int result;
+        try {
+            result = mkfifo.waitFor();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while creating named pipe " + fifo.getAbsolutePath());
+        }
+
+        if (result != 0)
+            throw new IOException("Failed to create named pipe " + fifo.getAbsolutePath() + " (mkfifo returned " + result + ")");
+
+        return fifo;
+    }
 }
@@ -46,6 +46,7 @@ import org.xml.sax.SAXException;
 public class JobConfig {
 
     private String command;
+    private String workerCommand = "";
     private JobInput splitableInput;
     private HashSet<JobInput> staticInputs;
     private HashSet<JobOutput> jobOutputs;
@@ -53,6 +54,16 @@ public class JobConfig {
     private String outputCompressor;
     private URI outputUrl;
     
+    /**
+     * Variable replaced in the command line by the number of cores available to the command
+     */
+    public static final String THREADS_VARIABLE = "threads";
+    
+    /**
+     * Variable replaced in the command line by the index of the process slot where the command runs
+     */
+    public static final String SLOT_VARIABLE = "slot";
+    
     /**
      * List of allowed compression codecs
      */
@@ -204,6 +215,15 @@ public class JobConfig {
             System.exit(1);
         }
 
+        // Get the worker command (if any)
+        try {
+            XPathExpression expr = xpath.compile("/job/worker");
+            workerCommand = ((String) expr.evaluate(doc, XPathConstants.STRING)).trim();
+        } catch (XPathExpressionException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
         command = command.trim();
 
         // Get the inputs
@@ -229,6 +249,11 @@ public class JobConfig {
                 System.exit(1);
             }
             
+            if (isReservedId(input.getAttribute("id"))) {
+                System.err.println("The id '" + input.getAttribute("id") + "' is reserved and cannot be used for an 'input' element");
+                System.exit(1);
+            }
+            
             boolean isSplitable = input.hasAttribute("split") && (input.getAttribute("split").compareToIgnoreCase("true") == 0);
             if (isSplitable) {
                 JobInput jobInput = new SplitableJobInput(input.getAttribute("id"));
@@ -247,6 +272,11 @@ public class JobConfig {
             System.err.println("The config file should contain exactly one 'input' element with a splitter");
             System.exit(1);
         }
+
+        if (hasWorker() && ((SplitableJobInput) splitableInput).isStreamed()) {
+            System.err.println("The splitable input cannot be streamed when a 'worker' element is used");
+            System.exit(1);
+        }
         
         // Get the outputs
         NodeList outputs = null;
@@ -317,15 +347,27 @@ public class JobConfig {
                 System.exit(1);
             }
 
+            if (isReservedId(output.getAttribute("id"))) {
+                System.err.println("The id '" + output.getAttribute("id") + "' is reserved and cannot be used for an 'output' element");
+                System.exit(1);
+            }
+
             JobOutput jobOutput = new JobOutput(output.getAttribute("id"));
 
             // Reducer
             jobOutput.setReducerId(output.getAttribute("reducer"));
+            if (output.hasAttribute("format"))
+                jobOutput.setFormatId(output.getAttribute("format"));
             if (output.hasAttribute("sequence") && output.getAttribute("sequence").equalsIgnoreCase("true")) {
                 // The output needs to be stored as hadoop SequenceFile for reuse in a future hadoop conf
                 jobOutput.setSaveAsSequence(true);
             }
             
+            if (output.hasAttribute("stream") && output.getAttribute("stream").equalsIgnoreCase("true")) {
+                // The output is parsed while the command is writing it to a named pipe
+                jobOutput.setStreamed(true);
+            }
+            
             jobOutputs.add(jobOutput);
             
             Hadoopizer.logger.info("Using reducer '"+jobOutput.getReducerId()+"' for output '"+jobOutput.getId()+"' ("+getOutputUrl()+")");
@@ -369,6 +411,12 @@ public class JobConfig {
         rootElement.appendChild(commandElement);
         commandElement.appendChild(doc.createTextNode(getRawCommand()));
 
+        if (hasWorker()) {
+            Element workerElement = doc.createElement("worker");
+            rootElement.appendChild(workerElement);
+            workerElement.appendChild(doc.createTextNode(getRawWorkerCommand()));
+        }
+
         // Static inputs
         for (JobInput input : staticInputs) {
             Element inputElement = input.dumpXml(doc);
@@ -387,9 +435,15 @@ public class JobConfig {
             outputsElement.appendChild(outputElement);
             outputElement.setAttribute("id", jobOutput.getId());
             outputElement.setAttribute("reducer", jobOutput.getReducerId());
+            if (!jobOutput.getFormatId().equalsIgnoreCase(jobOutput.getReducerId())) {
+                outputElement.setAttribute("format", jobOutput.getFormatId());
+            }
             if (jobOutput.isSaveAsSequence()) {
                 outputElement.setAttribute("sequence", "true");
             }
+            if (jobOutput.isStreamed()) {
+                outputElement.setAttribute("stream", "true");
+            }
         }
 
         if (hasOutputCompressor()) {
@@ -450,6 +504,42 @@ public class JobConfig {
         return command;
     }
 
+    /**
+     * Is there a persistent worker to which the commands are sent?
+     * 
+     * @return true if a worker command was defined
+     */
+    public boolean hasWorker() {
+
+        return !workerCommand.isEmpty();
+    }
+
+    /**
+     * Get the raw worker command line, as written in the config file
+     * 
+     * @return the raw worker command (empty if there is no worker)
+     */
+    public String getRawWorkerCommand() {
+
+        return workerCommand;
+    }
+
+    /**
+     * Get the worker command line with the static input variables replaced by local path, ready to execute on the corresponding node
+     * 
+     * @return the worker command, ready to execute
+     */
+    public String getFinalWorkerCommand() {
+
+        String finalCommand = workerCommand;
+
+        for (JobInput in : staticInputs) {
+            finalCommand = in.prepareCommand(finalCommand);
+        }
+
+        return finalCommand;
+    }
+
     /**
      * Get the command line with all variables replaced by local path, ready to execute on the corresponding node
      * 
@@ -475,6 +565,30 @@ public class JobConfig {
         return finalCommand;
     }
 
+    /**
+     * Replace a variable in a command line
+     * 
+     * @param command the command line
+     * @param id the variable id
+     * @param value the value of the variable
+     * @return the command line with the variable replaced
+     */
+    public static String replaceVariable(String command, String id, String value) {
+
+        return command.replaceAll("\\$\\{" + id + "\\}", value);
+    }
+
+    /**
+     * Check if an id is reserved for a variable set by hadoopizer
+     * 
+     * @param id the id to check
+     * @return true if the id cannot be used for an input or an output
+     */
+    public static boolean isReservedId(String id) {
+
+        return id.equals(THREADS_VARIABLE) || id.equals(SLOT_VARIABLE);
+    }
+
     /**
      * Get the list of JobInput object representing static input files used (but not modified) by the conf
      * 
@@ -613,7 +727,7 @@ public class JobConfig {
     public void checkVariables() {
         
         for (JobInput in : getStaticInputs()) {
-            if (!command.contains("${" + in.getId() + "}")) {
+            if (!command.contains("${" + in.getId() + "}") && !workerCommand.contains("${" + in.getId() + "}")) {
                 throw new RuntimeException("Input file '${" + in.getId() + "}' not found in the command line: '" + command + "'");
             }
         }
@@ -629,7 +743,7 @@ public class JobConfig {
         for (int i = 1; i <= numSplits; i++) {
             
             String suffix = "";
-            if (((SplitableJobInput) getSplitableInput()).needJoin())
+            if (((SplitableJobInput) getSplitableInput()).hasMultipleFiles())
                 suffix = "#" + i;
             
             if (!command.contains("${" + splitId + suffix + "}")) {
@@ -20,6 +20,7 @@ public class JobInputFile {
     private boolean autoComplete = false;
     private boolean loadAsSequence = false;
     private String splitterId;
+    private String chunkFormatId;
     private String localPath;
     
     /**
@@ -155,6 +156,24 @@ public class JobInputFile {
         this.splitterId = splitter;
     }
 
+    /**
+     * Get the id of the format used to write the chunks given to the command
+     * 
+     * @return the chunk format id, the splitter id if no other format was set
+     */
+    public String getChunkFormatId() {
+        return (chunkFormatId != null && !chunkFormatId.isEmpty()) ? chunkFormatId : splitterId;
+    }
+
+    /**
+     * Set the id of the format used to write the chunks given to the command (a BAM input can be given as SAM for example)
+     * 
+     * @param chunkFormatId the chunk format id to set, null to use the splitter format
+     */
+    public void setChunkFormatId(String chunkFormatId) {
+        this.chunkFormatId = chunkFormatId;
+    }
+
     /**
      * Get a FileInputFormat instance able to split the splitable input
      * 
@@ -173,16 +192,16 @@ public class JobInputFile {
     /**
      * Get a FileOutputFormat instance able to write the splitable input into a temporary file
      * 
-     * @return a FileOutputFormat corresponding to the splitter id defined for this JobInput
+     * @return a FileOutputFormat corresponding to the chunk format id defined for this JobInput
      */
     public HadoopizerOutputFormat getFileOutputFormat() {
         
         for (HadoopizerOutputFormat outputFormat : ServiceLoader.load(HadoopizerOutputFormat.class)) {
-            if (outputFormat.getId().equalsIgnoreCase(getSplitterId()) && (FileOutputFormat.class.isAssignableFrom(outputFormat.getClass())))
+            if (outputFormat.getId().equalsIgnoreCase(getChunkFormatId()) && (FileOutputFormat.class.isAssignableFrom(outputFormat.getClass())))
                 return outputFormat;
         }
         
-        throw new RuntimeException("Could not find a suitable OutputFormat service for id '" + getSplitterId() + "'");
+        throw new RuntimeException("Could not find a suitable OutputFormat service for id '" + getChunkFormatId() + "'");
     }
 
     /**
@@ -11,7 +11,9 @@ public class JobOutput {
 
     private String id;
     private String reducerId;
+    private String formatId;
     private boolean saveAsSequence = false;
+    private boolean streamed = false;
     private String localPath = "";
 
     public JobOutput(String id) {
@@ -69,6 +71,24 @@ public class JobOutput {
         this.reducerId = reducer;
     }
 
+    /**
+     * Get the id of the format used to write the merged output
+     * 
+     * @return the format id, the reducer id if no other format was set
+     */
+    public String getFormatId() {
+        return (formatId != null && !formatId.isEmpty()) ? formatId : reducerId;
+    }
+
+    /**
+     * Set the id of the format used to write the merged output (a sam output can be saved as bam for example)
+     * 
+     * @param formatId the format id to set, null to use the reducer format
+     */
+    public void setFormatId(String formatId) {
+        this.formatId = formatId;
+    }
+
     /**
      * Does the output should be saved in SequenceFile format?
      * 
@@ -87,18 +107,36 @@ public class JobOutput {
         this.saveAsSequence = saveAsSequence;
     }
 
+    /**
+     * Is the output read through a named pipe while the command is running?
+     * 
+     * @return true if the output is streamed
+     */
+    public boolean isStreamed() {
+        return streamed;
+    }
+
+    /**
+     * Set whether the output is read through a named pipe while the command is running
+     * 
+     * @param streamed true if the output is streamed
+     */
+    public void setStreamed(boolean streamed) {
+        this.streamed = streamed;
+    }
+
     /**
      * Get an FileOutputFormat able to merge the output
      * 
-     * @return a FileOutputFormat corresponding to the reducerId defined for this JobOutput
+     * @return a FileOutputFormat corresponding to the format id defined for this JobOutput
      */
     public HadoopizerOutputFormat getFileOutputFormat() {
         for (HadoopizerOutputFormat outputFormat : ServiceLoader.load(HadoopizerOutputFormat.class)) {
-            if (outputFormat.getId().equalsIgnoreCase(getReducerId()) && (FileOutputFormat.class.isAssignableFrom(outputFormat.getClass())))
+            if (outputFormat.getId().equalsIgnoreCase(getFormatId()) && (FileOutputFormat.class.isAssignableFrom(outputFormat.getClass())))
                 return outputFormat;
         }
         
-        throw new RuntimeException("Could not find a suitable OutputFormat service for id '" + getReducerId() + "'");
+        throw new RuntimeException("Could not find a suitable OutputFormat service for id '" + getFormatId() + "'");
     }
 
     /**
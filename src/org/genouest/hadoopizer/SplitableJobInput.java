@@ -10,8 +10,15 @@ import org.w3c.dom.NodeList;
 
 public class SplitableJobInput extends JobInput {
 
+    public static final String STREAM_FIFO = "fifo"; // Records are written to a named pipe read by the command
+    public static final String STREAM_STDIN = "stdin"; // Records are written to the standard input of the command
+
     private ArrayList<JobInputFile> files = new ArrayList<JobInputFile>();
     private boolean dataAlreadyJoined = false;
+    private String streamMode;
+    private long splitRecords = 0;
+    private boolean interleaved = false;
+    private long splitBases = 0;
 
     public SplitableJobInput(String id) {
         
@@ -48,7 +55,25 @@ public class SplitableJobInput extends JobInput {
                 file.setUrl(new URI(url));
                 file.setAutoComplete(false); // No autocomplete for splitable input
                 file.setSplitterId(urlEl.getAttribute("splitter"));
+                if (urlEl.hasAttribute("chunk"))
+                    file.setChunkFormatId(urlEl.getAttribute("chunk"));
                 files.add(file);
+                
+                if (urlEl.hasAttribute("interleaved") && urlEl.getAttribute("interleaved").equalsIgnoreCase("true")) {
+                    // Both mates of each pair are in the same file: one chunk file is written for each mate
+                    if (urls.getLength() > 1 || !file.getSplitterId().equalsIgnoreCase("fastq")) {
+                        System.err.println("Interleaved input '" + getId() + "' must contain a single url with the 'fastq' splitter");
+                        System.exit(1);
+                    }
+                    
+                    JobInputFile mate = new JobInputFile();
+                    mate.setUrl(file.getUrl());
+                    mate.setAutoComplete(false);
+                    mate.setSplitterId(file.getSplitterId());
+                    mate.setChunkFormatId(file.getChunkFormatId());
+                    files.add(mate);
+                    interleaved = true;
+                }
             } catch (URISyntaxException e) {
                 System.err.println("Wrong URI format in config file: "+url);
                 e.printStackTrace();
@@ -72,6 +97,56 @@ public class SplitableJobInput extends JobInput {
         if (urls.getLength() > 1 && allSequences && allSameUrl) { // We're reusing already joined data (each url has sequence="true" + same url)
             setDataAlreadyJoined(true);
         }
+        
+        if (input.hasAttribute("records"))
+            setSplitRecords(parseSplitTarget(input, "records"));
+        
+        if (input.hasAttribute("bases"))
+            setSplitBases(parseSplitTarget(input, "bases"));
+        
+        if (splitRecords > 0 && splitBases > 0) {
+            System.err.println("Input '" + getId() + "' cannot have both a 'records' and a 'bases' attribute");
+            System.exit(1);
+        }
+        
+        if (input.hasAttribute("stream") && !input.getAttribute("stream").equalsIgnoreCase("false")) {
+            String mode = input.getAttribute("stream").toLowerCase();
+            if (!mode.equals(STREAM_FIFO) && !mode.equals(STREAM_STDIN)) {
+                System.err.println("Unsupported stream mode '" + mode + "' for input '" + getId() + "' (allowed: " + STREAM_FIFO + ", " + STREAM_STDIN + ")");
+                System.exit(1);
+            }
+            
+            if (files.size() > 1) {
+                // The command could wait for data in one pipe while we're blocked writing to another one
+                System.err.println("Streaming is not supported for input '" + getId() + "': it contains more than one url");
+                System.exit(1);
+            }
+            
+            setStreamMode(mode);
+            Hadoopizer.logger.info("Streaming input '" + getId() + "' to the command (" + mode + ")");
+        }
+    }
+
+    /**
+     * Parse an attribute giving the size of the splits
+     * 
+     * @param input the xml Element of the input
+     * @param name the name of the attribute
+     * @return the value of the attribute
+     */
+    private long parseSplitTarget(Element input, String name) {
+        
+        try {
+            long value = Long.parseLong(input.getAttribute(name).trim());
+            if (value > 0)
+                return value;
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        
+        System.err.println("Invalid '" + name + "' attribute for input '" + getId() + "': " + input.getAttribute(name) + " (expected a positive number)");
+        System.exit(1);
+        return 0;
     }
 
     @Override
@@ -80,9 +155,21 @@ public class SplitableJobInput extends JobInput {
         Element inputElement = doc.createElement("input");
         inputElement.setAttribute("id", getId());
         inputElement.setAttribute("split", "true");
+        if (isStreamed()) {
+            inputElement.setAttribute("stream", getStreamMode());
+        }
+        if (splitRecords > 0) {
+            inputElement.setAttribute("records", Long.toString(splitRecords));
+        }
+        if (splitBases > 0) {
+            inputElement.setAttribute("bases", Long.toString(splitBases));
+        }
 
 
         for (JobInputFile file : files) {
+            if (interleaved && file != files.get(0))
+                break; // The mates are read from the same url
+            
             Element urlElement = doc.createElement("url");
             inputElement.appendChild(urlElement);
             urlElement.appendChild(doc.createTextNode(file.getUrl().toString()));
@@ -94,6 +181,12 @@ public class SplitableJobInput extends JobInput {
             }
             
             urlElement.setAttribute("splitter", file.getSplitterId());
+            if (interleaved) {
+                urlElement.setAttribute("interleaved", "true");
+            }
+            if (!file.getChunkFormatId().equalsIgnoreCase(file.getSplitterId())) {
+                urlElement.setAttribute("chunk", file.getChunkFormatId());
+            }
         }
         
         return inputElement;
@@ -109,7 +202,7 @@ public class SplitableJobInput extends JobInput {
                 throw new RuntimeException("Unable to generate command line: the splitable input local path is empty for url '" + file.getUrl() + "'.");
         
             String multipleSuffix = "";
-            if (needJoin())
+            if (hasMultipleFiles())
                 multipleSuffix = "\\#" + nb;
             cmd = cmd.replaceAll("\\$\\{" + getId() + multipleSuffix + "\\}", file.getLocalPath());
                         
@@ -136,9 +229,29 @@ public class SplitableJobInput extends JobInput {
      */
     public boolean needJoin() {
         
+        return files.size() > 1 && !interleaved;
+    }
+    
+    /**
+     * Check if the command receives several chunk files for this input (${id#1}, ${id#2}, ...)
+     *
+     * @return true if there are several input files, or if the mates of an interleaved input are separated
+     */
+    public boolean hasMultipleFiles() {
+        
         return files.size() > 1;
     }
     
+    /**
+     * Check if the input is a single file containing both mates of each pair, one after the other
+     *
+     * @return true if the input is interleaved
+     */
+    public boolean isInterleaved() {
+        
+        return interleaved;
+    }
+    
     /**
      * Check if the data represented by current instance has already been joined or not
      *
@@ -158,4 +271,74 @@ public class SplitableJobInput extends JobInput {
         
         this.dataAlreadyJoined = dataAlreadyJoined;
     }
+    
+    /**
+     * Get the way records are sent to the command while the split is read
+     *
+     * @return STREAM_FIFO, STREAM_STDIN, or null if the records are written to a temporary file before launching the command
+     */
+    public String getStreamMode() {
+        
+        return streamMode;
+    }
+    
+    /**
+     * Sets the way records are sent to the command while the split is read
+     *
+     * @param streamMode STREAM_FIFO, STREAM_STDIN, or null to write records to a temporary file
+     */
+    public void setStreamMode(String streamMode) {
+        
+        this.streamMode = streamMode;
+    }
+    
+    /**
+     * Check if the command should be launched before reading the split and consume records while they are read
+     *
+     * @return true, if the input is streamed to the command
+     */
+    public boolean isStreamed() {
+        
+        return streamMode != null;
+    }
+
+    /**
+     * Get the number of records each split should contain
+     * 
+     * @return the number of records per split, 0 if the splits are not planned by records
+     */
+    public long getSplitRecords() {
+        
+        return splitRecords;
+    }
+
+    /**
+     * Set the number of records each split should contain
+     * 
+     * @param splitRecords the number of records per split, 0 to disable
+     */
+    public void setSplitRecords(long splitRecords) {
+        
+        this.splitRecords = splitRecords;
+    }
+
+    /**
+     * Get the number of bases (or residues) each split should contain
+     * 
+     * @return the number of bases per split, 0 if the splits are not planned by bases
+     */
+    public long getSplitBases() {
+        
+        return splitBases;
+    }
+
+    /**
+     * Set the number of bases (or residues) each split should contain
+     * 
+     * @param splitBases the number of bases per split, 0 to disable
+     */
+    public void setSplitBases(long splitBases) {
+        
+        this.splitBases = splitBases;
+    }
 }
@@ -0,0 +1,304 @@
+package org.genouest.hadoopizer.input;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import net.sf.samtools.util.BlockCompressedInputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.genouest.hadoopizer.io.BAMRecordWritable;
+import org.genouest.hadoopizer.io.ObjectWritableComparable;
+import org.genouest.hadoopizer.io.TaggedObjectWritable;
+
+import fi.tkk.ics.hadoop.bam.BAMSplitGuesser;
+import fi.tkk.ics.hadoop.bam.util.WrapSeekable;
+
+/**
+ * Read the alignment records of a BAM file split.
+ * Split bounds are moved to the first record starting in the first BGZF block after them (found by {@link BAMSplitGuesser}),
+ * and positions are virtual file offsets (block address << 16 | offset in the uncompressed block).
+ * Each split reads the binary header at the beginning of the file, and saves it as SAM text in the header temp file.
+ * The same key and value objects are returned for each record: they are only valid until the next call to nextKeyValue().
+ */
+public class BAMRecordReader extends HadoopizerRecordReader {
+
+    private static final byte[] BAM_MAGIC = new byte[] {'B', 'A', 'M', 1};
+
+    private long start;
+    private long end;
+    private long endBlock; // Address of the block where the split ends, for the progress
+
+    private BlockCompressedInputStream in;
+    private byte[] intBuffer = new byte[4];
+    private boolean reachedEof = false;
+    Configuration conf;
+
+    private Text recordKey = new Text();
+    private BAMRecordWritable recordValue = new BAMRecordWritable();
+
+    private ObjectWritableComparable key = new ObjectWritableComparable();
+    private ObjectWritable valueData = new ObjectWritable(recordValue);
+    private TaggedObjectWritable taggedValue = new TaggedObjectWritable();
+    private ObjectWritable value = new ObjectWritable(taggedValue);
+
+    public BAMRecordReader(Path headerTempFile, Configuration conf) {
+
+        super(headerTempFile, conf);
+    }
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+
+        FileSplit fileSplit = (FileSplit) split;
+        conf = context.getConfiguration();
+
+        Path path = fileSplit.getPath();
+        FileSystem fs = path.getFileSystem(conf);
+        long fileLength = fs.getFileStatus(path).getLen();
+
+        in = new BlockCompressedInputStream(WrapSeekable.openPath(conf, path));
+        readHeader();
+        headerFinished();
+        long headerEnd = getPosition();
+
+        long splitStart = fileSplit.getStart();
+        long splitEnd = splitStart + fileSplit.getLength();
+
+        // The guesser only looks at the first blocks after the given position: both adjacent splits find the same record
+        start = splitStart == 0 ? headerEnd : Math.max(headerEnd, guessRecordStart(path, splitStart, fileLength));
+        end = splitEnd >= fileLength ? Long.MAX_VALUE : guessRecordStart(path, splitEnd, fileLength);
+        endBlock = end == Long.MAX_VALUE ? fileLength : end >>> 16;
+
+        if (start >= end) {
+            // No record starts in this split
+            reachedEof = true;
+        }
+        else if (start != headerEnd) {
+            in.seek(start);
+        }
+
+        trackOrigin(conf, path);
+    }
+
+    /**
+     * Find the first record starting in the first BGZF block after a position
+     *
+     * @param path the BAM file
+     * @param pos the position in the compressed file
+     * @param fileLength the length of the compressed file
+     * @return the virtual offset of the record, Long.MAX_VALUE if there is none
+     * @throws IOException
+     */
+    private long guessRecordStart(Path path, long pos, long fileLength) throws IOException {
+
+        // The guesser reads the header of the file to check the reference ids of the records
+        BAMSplitGuesser guesser = new BAMSplitGuesser(WrapSeekable.openPath(conf, path));
+        long recordStart = guesser.guessNextBAMRecordStart(pos, fileLength);
+
+        // The end of the file is returned (as a physical offset) when no record was found
+        return recordStart == fileLength ? Long.MAX_VALUE : recordStart;
+    }
+
+    /**
+     * Read the binary header of the BAM file, and write it to the header temp file as SAM text.
+     * The @SQ lines are generated from the binary reference list if the text doesn't contain them.
+     *
+     * @throws IOException
+     */
+    private void readHeader() throws IOException {
+
+        byte[] magic = new byte[4];
+        readFully(magic, 4);
+        for (int i = 0; i < magic.length; i++) {
+            if (magic[i] != BAM_MAGIC[i])
+                throw new IOException("Failed to parse BAM file: invalid magic number");
+        }
+
+        byte[] text = new byte[readInt()];
+        readFully(text, text.length);
+        int textLength = text.length;
+        while (textLength > 0 && text[textLength - 1] == 0) {
+            textLength--;
+        }
+
+        ArrayList<String> sqLines = new ArrayList<String>();
+        int nbRefs = readInt();
+        for (int i = 0; i < nbRefs; i++) {
+            byte[] name = new byte[readInt()];
+            readFully(name, name.length);
+            int refLength = readInt();
+            sqLines.add("@SQ\tSN:" + new String(name, 0, Math.max(0, name.length - 1)) + "\tLN:" + refLength);
+        }
+
+        boolean hasSq = false;
+        ArrayList<String> lines = new ArrayList<String>();
+        for (String line : new String(text, 0, textLength).split("\n")) {
+            if (line.endsWith("\r"))
+                line = line.substring(0, line.length() - 1);
+            if (line.isEmpty())
+                continue;
+
+            hasSq = hasSq || line.startsWith("@SQ");
+            lines.add(line);
+        }
+
+        if (!hasSq) {
+            // @HD must stay the first line
+            int pos = (!lines.isEmpty() && lines.get(0).startsWith("@HD")) ? 1 : 0;
+            lines.addAll(pos, sqLines);
+        }
+
+        for (String line : lines) {
+            writeHeaderLine(line);
+        }
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+
+        if (reachedEof)
+            return false;
+
+        if (getPosition() >= end) // The record belongs to the next split
+            return false;
+
+        int read = 0;
+        while (read < 4) {
+            int r = in.read(intBuffer, read, 4 - read);
+            if (r < 0)
+                break;
+            read += r;
+        }
+
+        if (read == 0) { // Reached the end of file
+            reachedEof = true;
+            return false;
+        }
+
+        if (read < 4)
+            throw new IOException("Failed to parse BAM file: truncated record at position " + getPosition());
+
+        int blockSize = toInt(intBuffer);
+        if (blockSize < 32)
+            throw new IOException("Failed to parse BAM file: invalid record at position " + getPosition());
+
+        recordValue.ensureCapacity(blockSize);
+        readFully(recordValue.getBytes(), blockSize);
+        recordValue.setLength(blockSize);
+
+        // l_read_name (including the trailing NUL) is at offset 8, read_name at offset 32
+        byte[] data = recordValue.getBytes();
+        recordKey.set(data, 32, Math.max(0, (data[8] & 0xff) - 1));
+
+        return true;
+    }
+
+    /**
+     * Get the position of the next record
+     *
+     * @return the virtual offset of the next record
+     * @throws IOException
+     */
+    private long getPosition() throws IOException {
+
+        // At the end of a block, available() loads the next one: the position is then at the beginning of the next block
+        in.available();
+
+        return in.getFilePointer();
+    }
+
+    /**
+     * Read a little endian int32
+     *
+     * @return the value read
+     * @throws IOException
+     */
+    private int readInt() throws IOException {
+
+        readFully(intBuffer, 4);
+
+        return toInt(intBuffer);
+    }
+
+    private static int toInt(byte[] b) {
+
+        return (b[0] & 0xff) | ((b[1] & 0xff) << 8) | ((b[2] & 0xff) << 16) | ((b[3] & 0xff) << 24);
+    }
+
+    /**
+     * Read a given number of bytes
+     *
+     * @param b the array to fill
+     * @param length the number of bytes to read
+     * @throws IOException if the end of the file is reached
+     */
+    private void readFully(byte[] b, int length) throws IOException {
+
+        int read = 0;
+        while (read < length) {
+            int r = in.read(b, read, length - read);
+            if (r < 0)
+                throw new IOException("Failed to parse BAM file: unexpected end of file");
+            read += r;
+        }
+    }
+
+    @Override
+    public long getCurrentBases() {
+
+        // l_seq is at offset 16
+        byte[] data = recordValue.getBytes();
+
+        return (data[16] & 0xff) | ((data[17] & 0xff) << 8) | ((data[18] & 0xff) << 16) | ((data[19] & 0xff) << 24);
+    }
+
+    @Override
+    public ObjectWritableComparable getCurrentKey() throws IOException, InterruptedException {
+
+        key.set("", recordKey);
+        return key;
+    }
+
+    @Override
+    public ObjectWritableComparable getCurrentKey(String id) throws IOException, InterruptedException {
+
+        key.set(id, recordKey);
+        return key;
+    }
+
+    @Override
+    public ObjectWritable getCurrentValue() throws IOException, InterruptedException {
+
+        taggedValue.set(getInputId(), valueData);
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        super.close();
+
+        if (in != null)
+            in.close();
+    }
+
+    @Override
+    public float getProgress() throws IOException {
+
+        if (reachedEof)
+            return (float) 1.0;
+
+        long startBlock = start >>> 16;
+        if (startBlock >= endBlock)
+            return (float) 0;
+
+        return Math.min((float) 1.0, ((in.getFilePointer() >>> 16) - startBlock) / (float) (endBlock - startBlock));
+    }
+}
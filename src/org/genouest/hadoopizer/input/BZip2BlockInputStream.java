@@ -0,0 +1,267 @@
+package org.genouest.hadoopizer.input;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.io.compress.bzip2.CBZip2InputStream;
+
+/**
+ * Decompress a bzip2 file block by block, starting from any position in the file.
+ * bzip2 blocks are not aligned on bytes: they are found by looking for their 48 bits magic number. Each block is then
+ * copied to a small self-contained bzip2 stream (with its own end of stream marker), decompressed by {@link CBZip2InputStream}.
+ * Like {@link net.sf.samtools.util.BlockCompressedInputStream}, positions are virtual offsets: the address of the block in
+ * the compressed file (the byte containing the first bit of its magic number) shifted by {@link #BLOCK_OFFSET_BITS}, plus the
+ * offset in the uncompressed block. Concatenated bzip2 streams (as produced by pbzip2) are supported.
+ */
+public class BZip2BlockInputStream extends InputStream {
+
+    public static final int BLOCK_OFFSET_BITS = 26; // Blocks hold up to 900k bytes, or up to 46M bytes once the initial run length encoding is decoded
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = (1L << 48) - 1;
+
+    private InputStream in;
+    private long bitPos; // Position in the compressed file, in bits
+    private int currentByte;
+    private int bitsLeft = 0;
+    private long window = 0; // Last 48 bits read
+    private int windowBits = 0;
+
+    private long nextBlockAddress; // -1 if there is no more block
+    private byte[] compressed = new byte[1024 * 1024]; // Self-contained bzip2 stream of the current block
+    private long compressedBits;
+
+    private long blockAddress = 0;
+    private byte[] block = new byte[1024 * 1024];
+    private int blockLength = 0;
+    private int blockOffset = 0;
+
+    /**
+     * Create a BZip2BlockInputStream
+     *
+     * @param in the compressed file, positioned at the given start
+     * @param start the position of the stream in the compressed file: the first block read is the first one starting after it
+     * @throws IOException
+     */
+    public BZip2BlockInputStream(InputStream in, long start) throws IOException {
+
+        this.in = in;
+        this.bitPos = start * 8;
+
+        nextBlockAddress = findMagic(BLOCK_MAGIC) ? (bitPos - 48) / 8 : -1;
+    }
+
+    /**
+     * Find the first block starting after a position in a bzip2 file
+     *
+     * @param in the compressed file, positioned at the given start
+     * @param start the position of the stream in the compressed file
+     * @return the address of the first block starting after start, or -1 if there is none
+     * @throws IOException
+     */
+    public static long findBlock(InputStream in, long start) throws IOException {
+
+        return new BZip2BlockInputStream(in, start).nextBlockAddress;
+    }
+
+    /**
+     * Get the address of the first block not decompressed yet
+     *
+     * @return the address of the next block, or -1 if there is none
+     */
+    public long getNextBlockAddress() {
+
+        return nextBlockAddress;
+    }
+
+    /**
+     * Get the position of the next byte
+     *
+     * @return the virtual offset of the next byte
+     */
+    public long getFilePointer() {
+
+        return (blockAddress << BLOCK_OFFSET_BITS) | blockOffset;
+    }
+
+    /**
+     * Get the number of bytes remaining in the current block, loading the next block if needed
+     *
+     * @return the number of bytes that can be read without changing block, 0 at the end of the file
+     */
+    @Override
+    public int available() throws IOException {
+
+        while (blockOffset >= blockLength) {
+            if (!readBlock())
+                return 0;
+        }
+
+        return blockLength - blockOffset;
+    }
+
+    @Override
+    public int read() throws IOException {
+
+        if (available() <= 0)
+            return -1;
+
+        return block[blockOffset++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+
+        int available = available();
+        if (available <= 0)
+            return -1;
+
+        int size = Math.min(len, available);
+        System.arraycopy(block, blockOffset, b, off, size);
+        blockOffset += size;
+
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        in.close();
+    }
+
+    /**
+     * Decompress the next block
+     *
+     * @return false if there is no more block
+     * @throws IOException
+     */
+    private boolean readBlock() throws IOException {
+
+        if (nextBlockAddress < 0)
+            return false;
+
+        blockAddress = nextBlockAddress;
+
+        // Stream header, then the block magic already read
+        compressedBits = 0;
+        writeBits('h', 8);
+        writeBits('9', 8); // The biggest block size: enough for any block
+        writeBits(BLOCK_MAGIC, 48);
+
+        windowBits = 0;
+        long magic = -1;
+        int bit;
+        while ((bit = readBit()) >= 0) {
+            writeBits(bit, 1);
+            if (windowBits >= 48 && (window == BLOCK_MAGIC || window == EOS_MAGIC)) {
+                magic = window;
+                compressedBits -= 48;
+                break;
+            }
+        }
+
+        if (magic < 0)
+            throw new IOException("Truncated bzip2 file: no end of stream found");
+
+        if (magic == BLOCK_MAGIC)
+            nextBlockAddress = (bitPos - 48) / 8;
+        else // End of a stream, there may be another one concatenated
+            nextBlockAddress = findMagic(BLOCK_MAGIC) ? (bitPos - 48) / 8 : -1;
+
+        // End of the stream: the combined CRC of a single block stream is the block CRC (right after the block magic)
+        long blockCrc = ((compressed[8] & 0xffL) << 24) | ((compressed[9] & 0xffL) << 16) | ((compressed[10] & 0xffL) << 8) | (compressed[11] & 0xffL);
+        writeBits(EOS_MAGIC, 48);
+        writeBits(blockCrc, 32);
+        while (compressedBits % 8 != 0) {
+            writeBits(0, 1);
+        }
+
+        // The codec reads the 'BZ' signature itself, CBZip2InputStream expects what follows
+        CBZip2InputStream decoder = new CBZip2InputStream(new ByteArrayInputStream(compressed, 0, (int) (compressedBits / 8)));
+        blockLength = 0;
+        blockOffset = 0;
+        int read;
+        while ((read = decoder.read(block, blockLength, block.length - blockLength)) > 0) {
+            blockLength += read;
+            if (blockLength == block.length) {
+                byte[] bigger = new byte[block.length * 2];
+                System.arraycopy(block, 0, bigger, 0, blockLength);
+                block = bigger;
+            }
+        }
+        decoder.close();
+
+        return true;
+    }
+
+    /**
+     * Read bits until a magic number is found
+     *
+     * @param magic the magic number to find
+     * @return false if the end of the file was reached
+     * @throws IOException
+     */
+    private boolean findMagic(long magic) throws IOException {
+
+        windowBits = 0;
+        while (readBit() >= 0) {
+            if (windowBits >= 48 && window == magic)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Read a bit from the compressed file
+     *
+     * @return the bit, -1 at the end of the file
+     * @throws IOException
+     */
+    private int readBit() throws IOException {
+
+        if (bitsLeft == 0) {
+            currentByte = in.read();
+            if (currentByte < 0)
+                return -1;
+            bitsLeft = 8;
+        }
+
+        bitsLeft--;
+        bitPos++;
+        int bit = (currentByte >>> bitsLeft) & 1;
+
+        window = ((window << 1) | bit) & MAGIC_MASK;
+        windowBits++;
+
+        return bit;
+    }
+
+    /**
+     * Append bits to the self-contained stream of the current block
+     *
+     * @param value the bits to write, right aligned
+     * @param nb the number of bits to write
+     */
+    private void writeBits(long value, int nb) {
+
+        for (int i = nb - 1; i >= 0; i--) {
+            int index = (int) (compressedBits >>> 3);
+            if (index >= compressed.length) {
+                byte[] bigger = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, bigger, 0, compressed.length);
+                compressed = bigger;
+            }
+
+            int mask = 0x80 >>> (int) (compressedBits & 7);
+            if (((value >>> i) & 1) != 0)
+                compressed[index] |= mask;
+            else
+                compressed[index] &= ~mask;
+
+            compressedBits++;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.genouest.hadoopizer.input;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.genouest.hadoopizer.Hadoopizer;
+import org.genouest.hadoopizer.JobConfig;
+import org.genouest.hadoopizer.SplitableJobInput;
+import org.genouest.hadoopizer.io.ObjectWritableComparable;
+
+/**
+ * Pack several files (or parts of files) of the splitable input in each split, up to 'hadoopizer.combine.size' bytes.
+ * The splits are grouped by node, then by rack, like {@link CombineFileInputFormat} does.
+ * The records are read by the input format of the splitable input (see {@link CombinedRecordReader}).
+ */
+public class CombinedInputFormat extends CombineFileInputFormat<ObjectWritableComparable, ObjectWritable> {
+
+    /**
+     * Get the input format reading the files of the splitable input
+     *
+     * @param conf the job configuration
+     * @return the input format of the first url of the splitable input
+     */
+    public static HadoopizerInputFormat getFileInputFormat(Configuration conf) {
+
+        JobConfig config = new JobConfig();
+        config.load(conf.get("hadoopizer.job.config"));
+        SplitableJobInput splitable = (SplitableJobInput) config.getSplitableInput();
+
+        return splitable.getFiles().get(0).getFileInputFormat();
+    }
+
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException {
+
+        setMaxSplitSize(job.getConfiguration().getLong("hadoopizer.combine.size", 0));
+
+        List<InputSplit> splits = super.getSplits(job);
+        Hadoopizer.logger.info("Combined the input files in " + splits.size() + " splits");
+
+        return splits;
+    }
+
+    @Override
+    protected boolean isSplitable(JobContext context, Path file) {
+
+        return getFileInputFormat(context.getConfiguration()).isSplitableFile(context, file);
+    }
+
+    @Override
+    public RecordReader<ObjectWritableComparable, ObjectWritable> createRecordReader(InputSplit split, TaskAttemptContext context) throws IOException {
+
+        return new CombinedRecordReader(getFileInputFormat(context.getConfiguration()));
+    }
+}
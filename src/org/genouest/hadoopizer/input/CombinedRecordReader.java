@@ -0,0 +1,112 @@
+package org.genouest.hadoopizer.input;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.genouest.hadoopizer.io.ObjectWritableComparable;
+
+/**
+ * Read the files of a {@link CombineFileSplit} one after the other, each one with a record reader of the given input format.
+ * The keys and values are the ones of the underlying record readers: the input id of the tagged values is kept.
+ */
+public class CombinedRecordReader extends RecordReader<ObjectWritableComparable, ObjectWritable> {
+
+    private HadoopizerInputFormat inputFormat;
+
+    private CombineFileSplit split;
+    private TaskAttemptContext context;
+    private int currentFile = -1;
+    private RecordReader<ObjectWritableComparable, ObjectWritable> reader;
+    private long bytesDone = 0; // Size of the files already read
+
+    /**
+     * Create a CombinedRecordReader
+     *
+     * @param inputFormat the input format creating the record reader of each file
+     */
+    public CombinedRecordReader(HadoopizerInputFormat inputFormat) {
+
+        this.inputFormat = inputFormat;
+    }
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+
+        this.split = (CombineFileSplit) split;
+        this.context = context;
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+
+        while (reader == null || !reader.nextKeyValue()) {
+            if (!nextFile())
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Close the current record reader, and open the next file
+     *
+     * @return false if all the files were read
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private boolean nextFile() throws IOException, InterruptedException {
+
+        if (reader != null) {
+            reader.close();
+            reader = null;
+            bytesDone += split.getLength(currentFile);
+        }
+
+        currentFile++;
+        if (currentFile >= split.getNumPaths())
+            return false;
+
+        FileSplit fileSplit = new FileSplit(split.getPath(currentFile), split.getOffset(currentFile), split.getLength(currentFile), split.getLocations());
+        reader = inputFormat.createRecordReader(fileSplit, context);
+        reader.initialize(fileSplit, context);
+
+        return true;
+    }
+
+    @Override
+    public ObjectWritableComparable getCurrentKey() throws IOException, InterruptedException {
+
+        return reader.getCurrentKey();
+    }
+
+    @Override
+    public ObjectWritable getCurrentValue() throws IOException, InterruptedException {
+
+        return reader.getCurrentValue();
+    }
+
+    @Override
+    public float getProgress() throws IOException, InterruptedException {
+
+        if (split == null || split.getLength() == 0)
+            return (float) 0;
+
+        long current = 0;
+        if (reader != null)
+            current = (long) (reader.getProgress() * split.getLength(currentFile));
+
+        return Math.min((float) 1.0, (bytesDone + current) / (float) split.getLength());
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        if (reader != null)
+            reader.close();
+    }
+}
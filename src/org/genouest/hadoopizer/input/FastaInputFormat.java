@@ -1,12 +1,12 @@
 package org.genouest.hadoopizer.input;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.ObjectWritable;
-import org.apache.hadoop.io.compress.CompressionCodec;
-import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.JobContext;
@@ -30,9 +30,135 @@ public class FastaInputFormat extends HadoopizerInputFormat {
     @Override
     protected boolean isSplitable(JobContext context, Path filename) {
         
-        CompressionCodec codec = new CompressionCodecFactory(context.getConfiguration()).getCodec(filename);
+        // Plain text, or compressed with BGZF
+        return SplitLineReader.isSplitable(filename, context.getConfiguration());
+    }
+
+    /**
+     * Sequences spilled to a local file (see hadoopizer.fasta.spill.size) are not {@link org.genouest.hadoopizer.io.SequenceRecordWritable}.
+     */
+    @Override
+    public boolean hasSequenceRecords(Configuration conf) {
+        
+        return conf.getLong("hadoopizer.fasta.spill.size", 0) <= 0;
+    }
+    
+    /**
+     * Sequences longer than hadoopizer.fasta.isolate.size residues (if not 0) always get their own split.
+     */
+    @Override
+    protected long getIsolateSize(Configuration conf) {
+        
+        return conf.getLong("hadoopizer.fasta.isolate.size", 0);
+    }
+    
+    /**
+     * Get the maximum number of residues of an entry of the index grouping several sequences
+     * 
+     * @param conf the job configuration
+     * @return the number of residues
+     */
+    protected long getIndexBases(Configuration conf) {
+        
+        return conf.getLong("hadoopizer.fasta.index.bases", 1000000);
+    }
+    
+    @Override
+    protected String getIndexKind(Configuration conf) {
+        
+        return super.getIndexKind(conf) + " " + getIndexBases(conf) + " " + getIsolateSize(conf);
+    }
+    
+    @Override
+    protected RecordIndex indexFile(Configuration conf, FileSystem fs, Path path, int interval) throws IOException {
+        
+        return buildIndex(fs, path, interval, getIndexBases(conf), getIsolateSize(conf));
+    }
+    
+    /**
+     * Read a plain fasta file to find the position and the number of residues of its sequences.
+     * Consecutive sequences are grouped in an entry until it has 'interval' sequences or 'maxBases' residues,
+     * so that the index stays small for files with millions of short sequences (proteins), while the splits are still balanced on residues.
+     * Sequences of at least 'isolateSize' residues (if not 0) have their own entry, to get their own split.
+     * 
+     * @param fs the filesystem
+     * @param path the fasta file
+     * @param interval the maximum number of sequences of an entry
+     * @param maxBases the number of residues closing an entry
+     * @param isolateSize the number of residues from which a sequence has its own entry (0 to disable)
+     * @return the index of the sequences
+     * @throws IOException
+     */
+    public static RecordIndex buildIndex(FileSystem fs, Path path, int interval, long maxBases, long isolateSize) throws IOException {
+        
+        RecordIndex index = new RecordIndex();
+        InputStream in = fs.open(path);
+        try {
+            byte[] buffer = new byte[1024 * 1024];
+            long pos = 0;
+            boolean lineStart = true;
+            boolean inHeader = false;
+            long sequenceStart = -1; // No sequence yet
+            long residues = 0;
+            boolean entryClosed = true;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer[i];
+                    if (lineStart && b == '>') {
+                        if (sequenceStart >= 0)
+                            entryClosed = indexSequence(index, sequenceStart, residues, entryClosed, interval, maxBases, isolateSize);
+                        sequenceStart = pos + i;
+                        residues = 0;
+                        inHeader = true;
+                    }
+                    else if (b == '\n') {
+                        inHeader = false;
+                    }
+                    else if (!inHeader && b != '\r') {
+                        residues++;
+                    }
+                    
+                    lineStart = b == '\n';
+                }
+                
+                pos += read;
+            }
+            
+            if (sequenceStart >= 0)
+                indexSequence(index, sequenceStart, residues, entryClosed, interval, maxBases, isolateSize);
+        } finally {
+            in.close();
+        }
+        
+        return index;
+    }
+    
+    /**
+     * Add a sequence to the index, in the last entry if it is not closed
+     * 
+     * @param index the index
+     * @param start the position of the header of the sequence
+     * @param residues the number of residues of the sequence
+     * @param entryClosed true if the last entry can't receive more sequences
+     * @param interval the maximum number of sequences of an entry
+     * @param maxBases the number of residues closing an entry
+     * @param isolateSize the number of residues from which a sequence has its own entry (0 to disable)
+     * @return true if the last entry is now closed
+     */
+    private static boolean indexSequence(RecordIndex index, long start, long residues, boolean entryClosed, int interval, long maxBases, long isolateSize) {
+        
+        boolean isolate = isolateSize > 0 && residues >= isolateSize;
+        if (entryClosed || isolate) {
+            index.add(start, residues);
+        }
+        else {
+            index.addRecords(1);
+            index.addBases(residues);
+        }
         
-        return codec == null;
+        int last = index.size() - 1;
+        return isolate || index.getRecords(last) >= interval || index.getBases(last) >= maxBases;
     }
 
     @Override
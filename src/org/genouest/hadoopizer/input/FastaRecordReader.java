@@ -1,38 +1,58 @@
 package org.genouest.hadoopizer.input;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.compress.CompressionCodec;
-import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
-import org.apache.hadoop.util.LineReader;
+import org.genouest.hadoopizer.Hadoopizer;
+import org.genouest.hadoopizer.io.FileBackedText;
+import org.genouest.hadoopizer.io.SequenceRecordWritable;
 import org.genouest.hadoopizer.io.TaggedObjectWritable;
 import org.genouest.hadoopizer.io.ObjectWritableComparable;
 
 /**
  * Inspired by org.apache.hadoop.mapreduce.lib.input.LineRecordReader
+ * Sequences are accumulated in a growable byte buffer, and returned as a {@link SequenceRecordWritable}.
+ * Sequences longer than hadoopizer.fasta.spill.size bytes are written to a local temp file instead, and returned as a {@link FileBackedText}.
+ * The key and value objects are reused: they are only valid until the next call to nextKeyValue().
  */
 public class FastaRecordReader extends HadoopizerRecordReader {
 
-    private long start;
     private long end;
-    private long pos;
+    private long headerPos; // Position of the first byte of the next fasta header
 
-    private LineReader lineReader;
-    private String nextLine = "";
+    private SplitLineReader in;
+    private Text line = new Text();
+    private Text nextHeader = new Text();
+    private boolean foundHeader = false;
     private boolean reachedEof = false;
     Configuration conf;
 
+    private long spillSize;
+    private DataOutputBuffer sequence = new DataOutputBuffer();
+    private File spillFile;
+    private OutputStream spillOut;
+    private long spilledBytes;
+
     private Text recordKey = new Text();
     private Text recordValue = new Text();
+    private FileBackedText spilledValue = new FileBackedText();
+
+    private ObjectWritableComparable key = new ObjectWritableComparable();
+    private SequenceRecordWritable sequenceValue = new SequenceRecordWritable();
+    private ObjectWritable valueData = new ObjectWritable(spilledValue);
+    private TaggedObjectWritable taggedValue = new TaggedObjectWritable();
+    private ObjectWritable value = new ObjectWritable(taggedValue);
 
     public FastaRecordReader(Path headerTempFile, Configuration conf) {
         
@@ -45,100 +65,129 @@ public class FastaRecordReader extends HadoopizerRecordReader {
         FileSplit fileSplit = (FileSplit) split;
         conf = context.getConfiguration();
 
-        start = fileSplit.getStart();
-        end = start + fileSplit.getLength();
-        
-        Path path = fileSplit.getPath();
-        CompressionCodecFactory compressionCodecs = new CompressionCodecFactory(conf);
-        CompressionCodec codec = compressionCodecs.getCodec(path);
-        
-        FileSystem fs = path.getFileSystem(conf);
-        FSDataInputStream fsin = fs.open(path);
-        
-        if (codec != null) {
-            // Input file is compressed: it is not splitted => no need to seek
-            lineReader = new LineReader(codec.createInputStream(fsin), conf);
-            end = Long.MAX_VALUE;
-        }
-        else {
-            lineReader = new LineReader(fsin, conf);
-            if (start != 0) {
-                --start;
-                fsin.seek(start);
-            }
-        }
-        
-        pos = start;
-        
-        if (start != 0 && codec == null) { // Not the beginning of the whole file (impossible if compressed as there will only be 1 split)
-            // Not at the beginning of the file, throw away the first (probably incomplete) line
-            Text tmp = new Text("");
-            pos += lineReader.readLine(tmp);
-        }
+        in = new SplitLineReader(fileSplit, conf);
+        end = in.getEnd();
+        spillSize = conf.getLong("hadoopizer.fasta.spill.size", 0);
         
         // Seek to the next fasta header (if we're not already positionned on a fasta header)
-        readUntilNextRecord();
+        readUntilNextRecord(false);
         
         headerFinished(); // No header in fasta
         
-        trackOrigin(conf, path);
+        trackOrigin(conf, fileSplit.getPath());
     }
 
     /**
      * Reads the fasta file until the next fasta header
-     * When a fasta header is encountered, the corresponding line is placed in nextLine variable
+     * When a fasta header is encountered, the corresponding line is placed in nextHeader variable
+     * The fasta content encountered before the next fasta header is accumulated without line breaks in the sequence buffer,
+     * or in the spill file if it is too long.
      * 
-     * @return the full fasta content encountered before the next fasta header, without line breaks
+     * @param keep false to throw away the fasta content (end of a record from the previous split)
      * @throws IOException 
      */
-    public String readUntilNextRecord() throws IOException {
+    private void readUntilNextRecord(boolean keep) throws IOException {
         
-        String sequence = "";
-        Text newLine = new Text("");
-        boolean foundHeader = false;
-        boolean noDataLeft = false;
-        int read;
+        sequence.reset();
+        spilledBytes = 0;
+        foundHeader = false;
 
-        while (!foundHeader && !noDataLeft) {
-            read = lineReader.readLine(newLine);
-            pos += read;
-            noDataLeft = (read == 0);
-            nextLine = newLine.toString();
+        int read;
+        while (!foundHeader) {
+            long linePos = in.getPosition();
+            read = in.readLine(line);
+            if (read == 0) {
+                reachedEof = true;
+                break;
+            }
 
-            if (nextLine.startsWith(">"))
+            if (line.getLength() > 0 && line.getBytes()[0] == '>') {
                 foundHeader = true;
-            else if (!nextLine.isEmpty())
-                sequence += nextLine;
+                headerPos = linePos;
+                nextHeader.set(line.getBytes(), 1, line.getLength() - 1);
+            }
+            else if (keep && line.getLength() > 0) {
+                appendSequence(line);
+            }
         }
-        
-        reachedEof = noDataLeft;
 
-        return sequence;
+        if (spillOut != null) {
+            spillOut.close();
+            spillOut = null;
+        }
+    }
+
+    /**
+     * Add a line to the current sequence, moving it to a spill file if it becomes too long
+     * 
+     * @param sequenceLine the line to add
+     * @throws IOException
+     */
+    private void appendSequence(Text sequenceLine) throws IOException {
+
+        if (spillOut == null && spillSize > 0 && sequence.getLength() + sequenceLine.getLength() > spillSize) {
+            spillFile = Hadoopizer.createTempFile(new File(System.getProperty("java.io.tmpdir")), "hadoopizer_fasta_", ".tmp");
+            spillOut = new BufferedOutputStream(new FileOutputStream(spillFile), 1024 * 1024);
+            spillOut.write(sequence.getData(), 0, sequence.getLength());
+            spilledBytes = sequence.getLength();
+            sequence.reset();
+
+            Hadoopizer.logger.info("Sequence too long, spilling it to " + spillFile.getAbsolutePath());
+        }
+
+        if (spillOut != null) {
+            spillOut.write(sequenceLine.getBytes(), 0, sequenceLine.getLength());
+            spilledBytes += sequenceLine.getLength();
+        }
+        else {
+            sequence.write(sequenceLine.getBytes(), 0, sequenceLine.getLength());
+        }
+    }
+
+    /**
+     * Delete the spill file of the previous record
+     */
+    private void discardSpill() {
+
+        if (spillFile != null) {
+            if (spillFile.exists() && !spillFile.delete())
+                Hadoopizer.logger.warning("Cannot delete temporary file: " + spillFile.getAbsolutePath());
+            spillFile = null;
+        }
     }
     
     @Override
     public boolean nextKeyValue() throws IOException, InterruptedException {
         
-        if ((pos >= end) || reachedEof) // Reached the end of split
+        if (!foundHeader || (headerPos >= end)) // Reached the end of split (a header starting before the end belongs to this split)
             return false;
-        
-        if (nextLine.startsWith(">")) {
-            
-            recordKey.set(nextLine.substring(1));
-            recordValue.set(readUntilNextRecord());
-            
-            return true;
+
+        recordKey.set(nextHeader);
+
+        discardSpill();
+        readUntilNextRecord(true);
+
+        if (spillFile != null) {
+            spilledValue.set(spillFile, spilledBytes);
+            valueData.set(spilledValue);
         }
         else {
-            // Means we didn't call readUntilNextRecord before which is not supposed to happen
-            throw new IOException("Failed to parse Fasta file: couldn't find header in '" + nextLine + "'");
+            recordValue.set(sequence.getData(), 0, sequence.getLength());
+            sequenceValue.set(getInputId(), recordKey, recordValue, null);
         }
+
+        return true;
+    }
+
+    @Override
+    public long getCurrentBases() {
+        
+        return spillFile != null ? spilledBytes : sequence.getLength();
     }
 
     @Override
     public ObjectWritableComparable getCurrentKey() throws IOException, InterruptedException {
         
-        ObjectWritableComparable key = new ObjectWritableComparable();
         key.set("", recordKey);
         return key;
     }
@@ -146,7 +195,6 @@ public class FastaRecordReader extends HadoopizerRecordReader {
     @Override
     public ObjectWritableComparable getCurrentKey(String id) throws IOException, InterruptedException {
 
-        ObjectWritableComparable key = new ObjectWritableComparable();
         key.set(id, recordKey);
         return key;
     }
@@ -154,8 +202,11 @@ public class FastaRecordReader extends HadoopizerRecordReader {
     @Override
     public ObjectWritable getCurrentValue() throws IOException, InterruptedException {
 
-        TaggedObjectWritable data = new TaggedObjectWritable(getInputId(), new ObjectWritable(recordValue));
-        return new ObjectWritable(data);
+        if (spillFile == null)
+            return sequenceValue;
+
+        taggedValue.set(getInputId(), valueData);
+        return value;
     }
 
     @Override
@@ -163,17 +214,17 @@ public class FastaRecordReader extends HadoopizerRecordReader {
 
         super.close();
         
-        if (lineReader != null)
-            lineReader.close();
+        if (spillOut != null)
+            spillOut.close();
+        discardSpill();
+
+        if (in != null)
+            in.close();
     }
 
     @Override
     public float getProgress() throws IOException {
 
-        if (start == end) {
-            return (float) 0;
-        } else {
-            return Math.min((float) 1.0, (pos - start) / (float)(end - start));
-        } 
+        return in.getProgress();
     }
 }
@@ -1,12 +1,12 @@
 package org.genouest.hadoopizer.input;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.ObjectWritable;
-import org.apache.hadoop.io.compress.CompressionCodec;
-import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.JobContext;
@@ -30,9 +30,90 @@ public class FastqInputFormat extends HadoopizerInputFormat {
     @Override
     protected boolean isSplitable(JobContext context, Path filename) {
         
-        CompressionCodec codec = new CompressionCodecFactory(context.getConfiguration()).getCodec(filename);
+        // Plain text, or compressed with BGZF
+        return SplitLineReader.isSplitable(filename, context.getConfiguration());
+    }
+
+    @Override
+    public boolean hasSequenceRecords(Configuration conf) {
+        
+        return true;
+    }
+    
+    @Override
+    protected RecordIndex indexFile(Configuration conf, FileSystem fs, Path path, int interval) throws IOException {
+        
+        return buildIndex(fs, path, interval);
+    }
+    
+    /**
+     * Read a plain fastq file to find the position of every 'interval' records, and the number of bases between them.
+     * Like {@link FastqRecordReader}, empty lines are ignored and each record is expected to have 4 lines.
+     * 
+     * @param fs the filesystem
+     * @param path the fastq file
+     * @param interval the number of records of each entry of the index
+     * @return the index, each entry grouping 'interval' records (except the last one)
+     * @throws IOException
+     */
+    public static RecordIndex buildIndex(FileSystem fs, Path path, int interval) throws IOException {
+        
+        RecordIndex index = new RecordIndex();
+        InputStream in = fs.open(path);
+        try {
+            byte[] buffer = new byte[1024 * 1024];
+            long pos = 0;
+            long lineStart = 0;
+            long lineLength = 0; // Without the line break
+            long nbLines = 0; // Non empty lines
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer[i];
+                    if (b == '\n') {
+                        if (lineLength > 0)
+                            indexLine(index, interval, nbLines++, lineStart, lineLength);
+                        
+                        lineStart = pos + i + 1;
+                        lineLength = 0;
+                    }
+                    else if (b != '\r') {
+                        lineLength++;
+                    }
+                }
+                
+                pos += read;
+            }
+            
+            if (lineLength > 0) // No line break at the end of the file
+                indexLine(index, interval, nbLines, lineStart, lineLength);
+        } finally {
+            in.close();
+        }
+        
+        return index;
+    }
+    
+    /**
+     * Add a non empty line of a fastq file to an index
+     * 
+     * @param index the index
+     * @param interval the number of records of each entry of the index
+     * @param lineNb the number of the line, not counting the empty lines
+     * @param lineStart the position of the line
+     * @param lineLength the length of the line
+     */
+    private static void indexLine(RecordIndex index, int interval, long lineNb, long lineStart, long lineLength) {
         
-        return codec == null;
+        if (lineNb % 4 == 0) { // Name line
+            if ((lineNb / 4) % interval == 0)
+                index.add(lineStart, 0);
+            else
+                index.addRecords(1);
+        }
+        else if (lineNb % 4 == 1) { // Sequence line
+            index.addBases(lineLength);
+        }
     }
 
     @Override
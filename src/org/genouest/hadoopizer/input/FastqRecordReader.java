@@ -1,45 +1,51 @@
 package org.genouest.hadoopizer.input;
 
 import java.io.IOException;
-import java.util.ArrayList;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.compress.CompressionCodec;
-import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
-import org.apache.hadoop.util.LineReader;
-import org.genouest.hadoopizer.Hadoopizer;
-import org.genouest.hadoopizer.io.TaggedObjectWritable;
+import org.genouest.hadoopizer.io.SequenceRecordWritable;
 import org.genouest.hadoopizer.io.ObjectWritableComparable;
 
 /**
  * Inspired by org.apache.hadoop.mapreduce.lib.input.LineRecordReader
+ * Lines are read as bytes into reused buffers, and the same key and value objects are returned for each record:
+ * they are only valid until the next call to nextKeyValue(). The value is a {@link SequenceRecordWritable}.
  */
 public class FastqRecordReader extends HadoopizerRecordReader {
 
-    private long start;
+    private static final int LOOKAHEAD = 11; // Lines read to find the first record of a split: 2 full records after up to 3 skipped lines
+
     private long end;
-    private long pos;
-    
-    private boolean reachedEof = false;
 
-    private LineReader lineReader;
-    private ArrayList<String> currentRecord = new ArrayList<String>();
+    private SplitLineReader in;
+    private Text[] lines = new Text[LOOKAHEAD]; // Ring of the non empty lines read but not consumed yet
+    private long[] lineStarts = new long[LOOKAHEAD]; // Position in the file of each line of the ring
+    private int firstLine = 0; // Index of the first line not consumed in the ring
+    private int nbLines = 0;
+    private int recordLine = 0; // Index of the first line of the current record in the ring
+    private boolean reachedEof = false;
+    private long nbRecords = 0;
     Configuration conf;
 
     private Text recordKey = new Text();
-    private Text recordValue = new Text();
+
+    private ObjectWritableComparable key = new ObjectWritableComparable();
+    private SequenceRecordWritable value = new SequenceRecordWritable();
 
     public FastqRecordReader(Path headerTempFile, Configuration conf) {
         
         super(headerTempFile, conf);
+
+        for (int i = 0; i < LOOKAHEAD; i++) {
+            lines[i] = new Text();
+        }
     }
     
     @Override
@@ -48,144 +54,228 @@ public class FastqRecordReader extends HadoopizerRecordReader {
         FileSplit fileSplit = (FileSplit) split;
         conf = context.getConfiguration();
 
-        start = fileSplit.getStart();
-        end = start + fileSplit.getLength();
+        in = new SplitLineReader(fileSplit, conf);
+        end = in.getEnd();
         
-        Path path = fileSplit.getPath();
-        CompressionCodecFactory compressionCodecs = new CompressionCodecFactory(conf);
-        CompressionCodec codec = compressionCodecs.getCodec(path);
+        trackOrigin(conf, fileSplit.getPath());
         
-        FileSystem fs = path.getFileSystem(conf);
-        FSDataInputStream fsin = fs.open(path);
-        
-        if (codec != null) {
-            // Input file is compressed: it is not splitted => no need to seek
-            lineReader = new LineReader(codec.createInputStream(fsin), conf);
-            end = Long.MAX_VALUE;
-        }
-        else {
-            lineReader = new LineReader(fsin, conf);
-            if (start != 0) {
-                --start;
-                fsin.seek(start);
-            }
-        }
-        
-        pos = start;
-        
-        if (start != 0 && codec == null) { // Not the beginning of the whole file (impossible if compressed as there will only be 1 split)
-            // Not at the beginning of the file, throw away the first (probably incomplete) line
-            shiftFastQRecord();
+        if (in.getStart() != 0) { // Not the beginning of the whole file
+            findFirstRecord();
+            
+            if (isInterleaved())
+                findFirstPair();
         }
         
         headerFinished(); // No header in fastq
-        
-        trackOrigin(conf, path);
     }
 
     /**
-     * Reads 4 lines (=possibly a record) from the fastq file
+     * Skip the first record of the split if it is the second mate of a pair starting in the previous split.
+     * The previous split then reads it even if it starts after its end (see {@link #nextKeyValue()}).
+     */
+    private void findFirstPair() throws IOException {
+
+        fillLines(8);
+
+        if (nbLines < 4)
+            return;
+
+        // A single record left at the end of the file can only be the second mate of a pair
+        if (nbLines < 8 || !isSameFragment(0, 4))
+            consumeLines(4);
+    }
+
+    /**
+     * Check if 2 records of the ring are the mates of a pair, comparing their names
+     * without the comment and without the /1 or /2 suffix
      * 
-     * @throws IOException
+     * @param i the position of the first line of the first record, from the first line not consumed
+     * @param j the position of the first line of the second record, from the first line not consumed
+     * @return true if the 2 records have the same fragment name
      */
-    public void findPotentialFastQRecord() throws IOException {
-        currentRecord.clear();
-        
-        Text newLine = new Text("");
-        
-        int read;
-        int foundLines = 0;
-        
-        while (foundLines < 4) {
-            read = lineReader.readLine(newLine);
-            if (read > 0) {
-                pos += read;
-                if (newLine.getLength() > 0) {
-                    currentRecord.add(newLine.toString());
-                    foundLines++;
-                }
+    private boolean isSameFragment(int i, int j) {
+
+        Text a = getLine(i);
+        Text b = getLine(j);
+        int lengthA = getFragmentNameLength(a);
+        int lengthB = getFragmentNameLength(b);
+
+        return lengthA == lengthB && WritableComparator.compareBytes(a.getBytes(), 0, lengthA, b.getBytes(), 0, lengthB) == 0;
+    }
+
+    /**
+     * Get the length of the fragment name in a record name: up to the first space or tab, without a /1 or /2 suffix
+     * 
+     * @param name the name line (or the name without the leading '@')
+     * @return the length of the fragment name, from the beginning of the name
+     */
+    static int getFragmentNameLength(Text name) {
+
+        byte[] bytes = name.getBytes();
+        int length = 0;
+        while (length < name.getLength() && bytes[length] != ' ' && bytes[length] != '\t') {
+            length++;
+        }
+
+        if (length > 2 && bytes[length - 2] == '/' && (bytes[length - 1] == '1' || bytes[length - 1] == '2'))
+            length -= 2;
+
+        return length;
+    }
+
+    /**
+     * Skip the lines before the first record of the split.
+     * A quality line can start with '@' or '+', so a single record is not enough to be sure that
+     * the first line is a record name: a position is only accepted if it is followed by 2 well formed records.
+     * As records always have 4 lines, this needs to check 4 positions, and to read at most 11 lines (8 after the last position).
+     * 
+     * @throws IOException if no valid position was found
+     */
+    private void findFirstRecord() throws IOException {
+
+        fillLines(LOOKAHEAD);
+
+        for (int offset = 0; offset < 4; offset++) {
+            if (offset + 4 > nbLines) {
+                // End of file: no complete record in this split
+                consumeLines(nbLines);
+                return;
             }
-            else if (read == 0) {
-                reachedEof = true;
-                break;
+
+            if (isRecord(offset) && (offset + 8 > nbLines || isRecord(offset + 4))) {
+                consumeLines(offset);
+                return;
             }
         }
+
+        throw new IOException("Failed to parse FastQ file: no record found after position " + in.getStart());
     }
 
     /**
-     * Shifts the list fastq record of 1 line in the fastq file
+     * Read lines until the ring contains the given number of lines, or the end of the file is reached
      * 
-     * @return a list of 4 strings from the fastq file
-     * @throws IOException 
+     * @param nb the number of lines wanted in the ring
+     * @throws IOException
      */
-    public void shiftFastQRecord() throws IOException {
-        if (!currentRecord.isEmpty())
-            currentRecord.remove(0);
+    private void fillLines(int nb) throws IOException {
 
-        Text newLine = new Text("");
-        
-        int read;
-        int foundLines = 0;
-
-        while (foundLines < 1) {
-            read = lineReader.readLine(newLine);
-            if (read > 0) {
-                pos += read;
-                if (newLine.getLength() > 0) {
-                    currentRecord.add(newLine.toString());
-                    foundLines++;
-                }
-            }
-            else if (read == 0) {
+        while (nbLines < nb && !reachedEof) {
+            int index = (firstLine + nbLines) % LOOKAHEAD;
+            Text line = lines[index];
+
+            long lineStart = in.getPosition();
+            int read = in.readLine(line);
+
+            if (read == 0) {
                 reachedEof = true;
-                break;
+            }
+            else if (line.getLength() > 0) {
+                lineStarts[index] = lineStart;
+                nbLines++;
             }
         }
     }
+
+    /**
+     * Remove lines from the beginning of the ring
+     * 
+     * @param nb the number of lines to remove
+     */
+    private void consumeLines(int nb) {
+
+        firstLine = (firstLine + nb) % LOOKAHEAD;
+        nbLines -= nb;
+    }
+
+    /**
+     * Get a line of the ring
+     * 
+     * @param i the position of the line, from the first line not consumed
+     * @return the line
+     */
+    private Text getLine(int i) {
+
+        return lines[(firstLine + i) % LOOKAHEAD];
+    }
+
+    /**
+     * Check if 4 lines of the ring look like a fastq record
+     * 
+     * @param i the position of the first line, from the first line not consumed
+     * @return true if the lines are a name, a sequence, a '+' line and a quality of the same length as the sequence
+     */
+    private boolean isRecord(int i) {
+
+        return getLine(i).getBytes()[0] == '@' && getLine(i + 2).getBytes()[0] == '+' && getLine(i + 1).getLength() == getLine(i + 3).getLength();
+    }
     
     @Override
     public boolean nextKeyValue() throws IOException, InterruptedException {
-        
-        if ((pos >= end) || reachedEof) // Reached the end of split
+
+        fillLines(4);
+
+        if (nbLines < 4) // Reached the end of file
             return false;
-        
-        findPotentialFastQRecord();
-        
-        if (currentRecord.size() != 4)
+
+        // The record belongs to the next split, unless it is the second mate of the last pair
+        if (lineStarts[firstLine] >= end && !(isInterleaved() && nbRecords % 2 == 1))
             return false;
-        
-        int tries = 0;
-        while (tries < 4) { // 4 lines in a record
-            if (currentRecord.get(0).startsWith("@") && currentRecord.get(2).startsWith("+") && (currentRecord.get(1).length() == currentRecord.get(3).length())) {
-                // This looks like a good FastQ record
-                // Construct the string
-                String record = currentRecord.get(1) + "\n" + currentRecord.get(2) + "\n" + currentRecord.get(3);
-                
-                recordKey.set(currentRecord.get(0).substring(1));
-                recordValue.set(record);
-                
-                return true;
-            }
-            else {
-                shiftFastQRecord();
-                
-                if (currentRecord.size() != 4) {
-                    Hadoopizer.logger.info("Reached the end of fastq file while shifting lines");
-                    return false;
-                }
-                
-                tries++;
-            }
-        }
-        
-        // Error parsing fastq if we get there
-        throw new IOException("Failed to parse FastQ file");
+
+        if (!isRecord(0))
+            throw new IOException("Failed to parse FastQ file: invalid record at position " + lineStarts[firstLine]);
+
+        Text name = getLine(0);
+        recordKey.set(name.getBytes(), 1, name.getLength() - 1);
+
+        // The lines stay in the ring until the next call
+        recordLine = firstLine;
+        consumeLines(4);
+        nbRecords++;
+
+        value.set(getInputId(), recordKey, getCurrentSequence(), getCurrentQuality());
+
+        return true;
+    }
+
+    /**
+     * Get the name of the current record, without the leading '@' (valid until the next call to nextKeyValue())
+     * 
+     * @return the name of the current record
+     */
+    public Text getCurrentName() {
+
+        return recordKey;
+    }
+
+    /**
+     * Get the sequence of the current record (valid until the next call to nextKeyValue())
+     * 
+     * @return the sequence line of the current record
+     */
+    public Text getCurrentSequence() {
+
+        return lines[(recordLine + 1) % LOOKAHEAD];
+    }
+
+    /**
+     * Get the quality of the current record (valid until the next call to nextKeyValue())
+     * 
+     * @return the quality line of the current record
+     */
+    public Text getCurrentQuality() {
+
+        return lines[(recordLine + 3) % LOOKAHEAD];
+    }
+
+    @Override
+    public long getCurrentBases() {
+
+        return getCurrentSequence().getLength();
     }
 
     @Override
     public ObjectWritableComparable getCurrentKey() throws IOException, InterruptedException {
 
-        ObjectWritableComparable key = new ObjectWritableComparable();
         key.set("", recordKey);
         return key;
     }
@@ -193,8 +283,6 @@ public class FastqRecordReader extends HadoopizerRecordReader {
     @Override
     public ObjectWritableComparable getCurrentKey(String id) throws IOException, InterruptedException {
 
-        
-        ObjectWritableComparable key = new ObjectWritableComparable();
         key.set(id, recordKey);
         return key;
     }
@@ -202,8 +290,7 @@ public class FastqRecordReader extends HadoopizerRecordReader {
     @Override
     public ObjectWritable getCurrentValue() throws IOException, InterruptedException {
 
-        TaggedObjectWritable data = new TaggedObjectWritable(getInputId(), new ObjectWritable(recordValue));
-        return new ObjectWritable(data);
+        return value;
     }
 
     @Override
@@ -211,17 +298,13 @@ public class FastqRecordReader extends HadoopizerRecordReader {
 
         super.close();
         
-        if (lineReader != null)
-            lineReader.close();
+        if (in != null)
+            in.close();
     }
 
     @Override
     public float getProgress() throws IOException {
 
-        if (start == end) {
-            return (float) 0;
-        } else {
-            return Math.min((float) 1.0, (pos - start) / (float)(end - start));
-        } 
+        return in.getProgress();
     }
 }
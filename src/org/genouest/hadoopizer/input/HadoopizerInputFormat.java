@@ -1,9 +1,22 @@
 package org.genouest.hadoopizer.input;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.genouest.hadoopizer.Hadoopizer;
 import org.genouest.hadoopizer.JobConfig;
 import org.genouest.hadoopizer.JobInputFile;
 import org.genouest.hadoopizer.SplitableJobInput;
@@ -11,6 +24,8 @@ import org.genouest.hadoopizer.io.ObjectWritableComparable;
 
 public abstract class HadoopizerInputFormat extends FileInputFormat<ObjectWritableComparable, ObjectWritable> {
 
+    private static final double SPLIT_SLOP = 1.1; // Same as FileInputFormat: the last split can be 10% bigger
+    
     private Path headerTempFile;
     
     /**
@@ -44,9 +59,7 @@ public abstract class HadoopizerInputFormat extends FileInputFormat<ObjectWritab
             for (JobInputFile inFile : splitable.getFiles()) {
                 if (inFile.getUrl().toString().compareTo(file.toString()) == 0) {
                     // There are multiple input: header temp file must have different names
-                    String headerFile = conf.get("hadoopizer.temp.input.header.file") + "_" + splitable.getId() + "_" + nb;
-                    if (headerFile != null &&  !headerFile.isEmpty())
-                        headerTempFile = new Path(headerFile);
+                    headerTempFile = getInputHeaderFile(conf, splitable.getId(), nb);
                 }
                 
                 nb++;
@@ -56,6 +69,37 @@ public abstract class HadoopizerInputFormat extends FileInputFormat<ObjectWritab
         return headerTempFile;
     }
     
+    /**
+     * Get the file containing the header of an input file.
+     * If the headers were extracted when the job was submitted, this is the local copy from the distributed cache,
+     * otherwise the first task reading the input file writes it in the hdfs temp dir.
+     *
+     * @param conf the job configuration
+     * @param inputId the id of the splitable input
+     * @param nb the index of the input file in the splitable input
+     * @return the header file
+     */
+    public static Path getInputHeaderFile(Configuration conf, String inputId, int nb) {
+        
+        Path headerFile = new Path(conf.get("hadoopizer.temp.input.header.file") + "_" + inputId + "_" + nb);
+        
+        if (conf.getBoolean("hadoopizer.input.header.cached", false)) {
+            try {
+                Path[] cacheFiles = DistributedCache.getLocalCacheFiles(conf);
+                if (cacheFiles != null) {
+                    for (Path cacheFile : cacheFiles) {
+                        if (cacheFile.getName().equals(headerFile.getName()))
+                            return FileSystem.getLocal(conf).makeQualified(cacheFile);
+                    }
+                }
+            } catch (IOException e) {
+                // Read it from the hdfs temp dir
+            }
+        }
+        
+        return headerFile;
+    }
+    
     /**
      * Set a file where input file header can be saved
      * 
@@ -65,4 +109,338 @@ public abstract class HadoopizerInputFormat extends FileInputFormat<ObjectWritab
         
         this.headerTempFile = headerTempFile;
     }
+
+    /**
+     * Check if a file can be split by this input format, for the input formats wrapping it
+     * 
+     * @param context the job context
+     * @param file the file to check
+     * @return true if the file can be split
+     */
+    boolean isSplitableFile(JobContext context, Path file) {
+        
+        return isSplitable(context, file);
+    }
+
+    /**
+     * Check if the values of all the records read by this input format are {@link org.genouest.hadoopizer.io.SequenceRecordWritable}.
+     * In this case, the jobs reading them can declare it as their map output value class, to shuffle the records in their compact form.
+     * 
+     * @param conf the job configuration
+     * @return true if the values are always SequenceRecordWritable
+     */
+    public boolean hasSequenceRecords(Configuration conf) {
+        
+        return false;
+    }
+
+    /**
+     * Compute the splits of the input files.
+     * If the splitable input has a 'records' or 'bases' attribute, the splits are planned for each file from its {@link RecordIndex}
+     * when the format can index it, or else with a split size estimated by a {@link SplitPlanner}.
+     * Otherwise the splits have the size computed by FileInputFormat, and start on a record when an index of the file was already saved.
+     */
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException {
+        
+        Configuration conf = job.getConfiguration();
+        String xmlConfig = conf.get("hadoopizer.job.config");
+        if (xmlConfig == null)
+            return super.getSplits(job);
+        
+        JobConfig config = new JobConfig();
+        config.load(xmlConfig);
+        SplitableJobInput splitable = (SplitableJobInput) config.getSplitableInput();
+        boolean hasTarget = splitable.getSplitRecords() > 0 || splitable.getSplitBases() > 0;
+        
+        List<InputSplit> splits = new ArrayList<InputSplit>();
+        List<FileStatus> files = listStatus(job);
+        SplitPlanner planner = new SplitPlanner(this, conf);
+        for (FileStatus file : files) {
+            Path path = file.getPath();
+            FileSystem fs = path.getFileSystem(conf);
+            long length = file.getLen();
+            BlockLocation[] blkLocations = fs.getFileBlockLocations(file, 0, length);
+            
+            if (length == 0) {
+                splits.add(new FileSplit(path, 0, length, new String[0]));
+                continue;
+            }
+            
+            if (!isSplitable(job, path)) {
+                splits.add(new FileSplit(path, 0, length, blkLocations[0].getHosts()));
+                continue;
+            }
+            
+            if (hasTarget)
+                planFileSplits(job, file, blkLocations, splitable, planner, splits);
+            else
+                planDefaultSplits(job, file, blkLocations, splits);
+        }
+        
+        return splits;
+    }
+
+    /**
+     * Compute the splits of a splitable file without records or bases target: they have the size computed by FileInputFormat,
+     * but they start exactly on a record if an index of the file was saved (it is not built for this)
+     * 
+     * @param job the job
+     * @param file the file to split
+     * @param blkLocations the locations of the blocks of the file
+     * @param splits the list where the splits are added
+     * @throws IOException
+     */
+    protected void planDefaultSplits(JobContext job, FileStatus file, BlockLocation[] blkLocations, List<InputSplit> splits) throws IOException {
+        
+        Path path = file.getPath();
+        long length = file.getLen();
+        long splitSize = computeSplitSize(file.getBlockSize(), getMinSplitSize(job), getMaxSplitSize(job));
+        
+        RecordIndex index = loadIndex(job.getConfiguration(), file);
+        if (index == null) {
+            planByteSplits(file, blkLocations, splitSize, splits);
+            return;
+        }
+        
+        // Cut at the first entry after each splitSize bytes, the last split can be 10% bigger
+        int nbSplits = 0;
+        long splitStart = 0;
+        for (int i = 0; i < index.size(); i++) {
+            long offset = index.getOffset(i);
+            if (offset - splitStart >= splitSize && ((double) (length - splitStart)) / splitSize > SPLIT_SLOP) {
+                addSplit(path, splitStart, offset, blkLocations, splits);
+                nbSplits++;
+                splitStart = offset;
+            }
+        }
+        
+        addSplit(path, splitStart, length, blkLocations, splits);
+        nbSplits++;
+        
+        Hadoopizer.logger.info("Planned " + nbSplits + " splits of about " + splitSize + " bytes for " + path + " on the records of its index");
+    }
+
+    /**
+     * Compute the splits of a splitable file, so that they contain the number of records or bases asked for the splitable input
+     * 
+     * @param job the job
+     * @param file the file to split
+     * @param blkLocations the locations of the blocks of the file
+     * @param splitable the splitable input
+     * @param planner the planner estimating the split size
+     * @param splits the list where the splits are added
+     * @throws IOException
+     */
+    protected void planFileSplits(JobContext job, FileStatus file, BlockLocation[] blkLocations, SplitableJobInput splitable, SplitPlanner planner, List<InputSplit> splits) throws IOException {
+        
+        Path path = file.getPath();
+        long length = file.getLen();
+        
+        RecordIndex index = getIndex(job.getConfiguration(), file);
+        if (index != null) {
+            planIndexedSplits(job, file, blkLocations, splitable, index, splits);
+            return;
+        }
+        
+        long splitSize = planner.getSplitSize(file, splitable.getSplitRecords(), splitable.getSplitBases());
+        if (splitSize <= 0)
+            splitSize = computeSplitSize(file.getBlockSize(), getMinSplitSize(job), getMaxSplitSize(job));
+        
+        planByteSplits(file, blkLocations, splitSize, splits);
+    }
+
+    /**
+     * Cut a file in splits of a given size, like FileInputFormat (the record readers find the first record of each split)
+     * 
+     * @param file the file to split
+     * @param blkLocations the locations of the blocks of the file
+     * @param splitSize the size of the splits
+     * @param splits the list where the splits are added
+     * @throws IOException
+     */
+    private void planByteSplits(FileStatus file, BlockLocation[] blkLocations, long splitSize, List<InputSplit> splits) throws IOException {
+        
+        Path path = file.getPath();
+        long length = file.getLen();
+        long bytesRemaining = length;
+        while (((double) bytesRemaining) / splitSize > SPLIT_SLOP) {
+            int blkIndex = getBlockIndex(blkLocations, length - bytesRemaining);
+            splits.add(new FileSplit(path, length - bytesRemaining, splitSize, blkLocations[blkIndex].getHosts()));
+            bytesRemaining -= splitSize;
+        }
+        
+        if (bytesRemaining != 0)
+            splits.add(new FileSplit(path, length - bytesRemaining, bytesRemaining, blkLocations[blkLocations.length - 1].getHosts()));
+    }
+
+    /**
+     * Group the consecutive entries of an index until the split target is reached.
+     * Entries of a single record of at least {@link #getIsolateSize(Configuration)} bases (if not 0) always get their own split.
+     * 
+     * @param job the job
+     * @param file the file to split
+     * @param blkLocations the locations of the blocks of the file
+     * @param splitable the splitable input
+     * @param index the index of the file
+     * @param splits the list where the splits are added
+     * @throws IOException
+     */
+    protected void planIndexedSplits(JobContext job, FileStatus file, BlockLocation[] blkLocations, SplitableJobInput splitable, RecordIndex index, List<InputSplit> splits) throws IOException {
+        
+        Path path = file.getPath();
+        boolean byRecords = splitable.getSplitRecords() > 0;
+        long target = byRecords ? splitable.getSplitRecords() : splitable.getSplitBases();
+        long isolateSize = getIsolateSize(job.getConfiguration());
+        
+        int nbSplits = 0;
+        long splitStart = 0;
+        long splitWeight = 0;
+        for (int i = 0; i < index.size(); i++) {
+            boolean isolate = isolateSize > 0 && index.getRecords(i) == 1 && index.getBases(i) >= isolateSize;
+            if (splitWeight > 0 && (isolate || splitWeight >= target)) {
+                addSplit(path, splitStart, index.getOffset(i), blkLocations, splits);
+                nbSplits++;
+                splitStart = index.getOffset(i);
+                splitWeight = 0;
+            }
+            
+            splitWeight += byRecords ? index.getRecords(i) : index.getBases(i);
+            
+            // Close the split after this entry
+            if (isolate)
+                splitWeight = Math.max(splitWeight, target);
+        }
+        
+        if (splitStart < file.getLen()) {
+            addSplit(path, splitStart, file.getLen(), blkLocations, splits);
+            nbSplits++;
+        }
+        
+        Hadoopizer.logger.info("Planned " + nbSplits + " splits for " + path + " from the index of its " + index.getTotalRecords() + " records (" + index.getTotalBases() + " bases)");
+    }
+    
+    /**
+     * Add a split to the list
+     * 
+     * @param path the file
+     * @param start the position of the beginning of the split
+     * @param end the position of the end of the split
+     * @param blkLocations the locations of the blocks of the file
+     * @param splits the list where the split is added
+     * @throws IOException
+     */
+    private void addSplit(Path path, long start, long end, BlockLocation[] blkLocations, List<InputSplit> splits) throws IOException {
+        
+        int blkIndex = getBlockIndex(blkLocations, start);
+        splits.add(new FileSplit(path, start, end - start, blkLocations[blkIndex].getHosts()));
+    }
+    
+    /**
+     * Get the index of a file, to plan its splits.
+     * The index saved by a previous job (see {@link RecordIndex#load(Configuration, FileStatus, String)}) is used if it is up to date,
+     * otherwise the file is indexed, and the index is saved for the next jobs if 'hadoopizer.index.save' is true.
+     * 
+     * @param conf the job configuration
+     * @param file the file
+     * @return the index, null if the format can't index the file (compressed file, or not a regular file)
+     * @throws IOException
+     */
+    public RecordIndex getIndex(Configuration conf, FileStatus file) throws IOException {
+        
+        Path path = file.getPath();
+        if (!isIndexable(conf, path))
+            return null;
+        
+        RecordIndex index = loadIndex(conf, file);
+        if (index != null)
+            return index;
+        
+        index = indexFile(conf, path.getFileSystem(conf), path, getIndexInterval(conf));
+        if (index != null && conf.getBoolean("hadoopizer.index.save", true))
+            index.save(conf, file, getIndexKind(conf));
+        
+        return index;
+    }
+    
+    /**
+     * Get the index of a file saved by a previous job, without building it
+     * 
+     * @param conf the job configuration
+     * @param file the file
+     * @return the index, null if there is no up to date index of the file
+     * @throws IOException
+     */
+    public RecordIndex loadIndex(Configuration conf, FileStatus file) throws IOException {
+        
+        Path path = file.getPath();
+        if (!isIndexable(conf, path))
+            return null;
+        
+        return RecordIndex.load(conf, file, getIndexKind(conf));
+    }
+    
+    /**
+     * Check if a file can be indexed: a regular file, not compressed
+     * 
+     * @param conf the job configuration
+     * @param path the file
+     * @return true if the file can be indexed
+     * @throws IOException
+     */
+    private boolean isIndexable(Configuration conf, Path path) throws IOException {
+        
+        if (!SplitLineReader.isRegularFile(path, conf))
+            return false;
+        
+        return new CompressionCodecFactory(conf).getCodec(path) == null && !SplitLineReader.isBlockCompressed(path, conf);
+    }
+    
+    /**
+     * Read a whole file to build its index
+     * 
+     * @param conf the job configuration
+     * @param fs the filesystem
+     * @param path the file (never compressed)
+     * @param interval the number of records of each entry
+     * @return the index, null if the format can't be indexed
+     * @throws IOException
+     */
+    protected RecordIndex indexFile(Configuration conf, FileSystem fs, Path path, int interval) throws IOException {
+        
+        return null;
+    }
+    
+    /**
+     * Get the number of records of each entry of the index
+     * 
+     * @param conf the job configuration
+     * @return the number of records of each entry
+     */
+    protected int getIndexInterval(Configuration conf) {
+        
+        return conf.getInt("hadoopizer.index.interval", 1000);
+    }
+    
+    /**
+     * Describe the content of the index, so that an index saved with other settings is not reused
+     * 
+     * @param conf the job configuration
+     * @return the format and the settings used to build the index
+     */
+    protected String getIndexKind(Configuration conf) {
+        
+        return getId() + " " + getIndexInterval(conf);
+    }
+    
+    /**
+     * Get the number of bases from which an entry of the index gets its own split
+     * 
+     * @param conf the job configuration
+     * @return the number of bases, 0 to never isolate entries
+     */
+    protected long getIsolateSize(Configuration conf) {
+        
+        return 0;
+    }
 }
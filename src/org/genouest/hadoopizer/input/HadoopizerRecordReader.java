@@ -18,6 +18,7 @@ public abstract class HadoopizerRecordReader extends RecordReader<ObjectWritable
     private Path headerTempFile;
     private FSDataOutputStream headerOut;
     protected int inputId = 0; // id corresponding to the input file where we're reading from. This is used to track data origin during map phase
+    private boolean interleaved = false; // Reading an interleaved input: both mates of each pair are in the file
 
     /**
      * Create a HadoopizerRecordReader
@@ -84,6 +85,19 @@ public abstract class HadoopizerRecordReader extends RecordReader<ObjectWritable
         }
     }
 
+    /**
+     * Read the header of the file and write it to the temporary header file, if it was not done by initialize().
+     * The split must start at the beginning of the file, and no record should be read afterwards.
+     * 
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void extractHeader() throws IOException, InterruptedException {
+        
+        // Most formats have no header, or read it in initialize()
+        headerFinished();
+    }
+
     @Override
     public void close() throws IOException {
 
@@ -106,6 +120,7 @@ public abstract class HadoopizerRecordReader extends RecordReader<ObjectWritable
         for (JobInputFile file : splitable.getFiles()) {
             if (file.getUrl().toString().contentEquals(path.toString())) {
                 inputId = nb;
+                interleaved = splitable.isInterleaved();
                 break;
             }
             
@@ -122,6 +137,25 @@ public abstract class HadoopizerRecordReader extends RecordReader<ObjectWritable
         return inputId;
     }
 
+    /**
+     * Check if the file where the data is read from contains both mates of each pair, one after the other.
+     * Only valid after a call to {@link #trackOrigin(Configuration, Path)}.
+     *
+     * @return true if the file is an interleaved input
+     */
+    protected boolean isInterleaved() {
+        return interleaved;
+    }
+
+    /**
+     * Get the number of bases (or residues) of the current record, used to balance the splits
+     *
+     * @return the number of bases of the current record, 0 if the record has no sequence
+     */
+    public long getCurrentBases() {
+        return 0;
+    }
+
     /**
      * Get the current key, with given id to put in the {@link ObjectWritableComparable}.
      *
@@ -53,7 +53,7 @@ public class MultipleInputFormat extends FileInputFormat<ObjectWritableComparabl
                     HadoopizerInputFormat inf = file.getFileInputFormat();
                     
                     // There are multiple input: header temp file must have different names
-                    Path headerFile = new Path(context.getConfiguration().get("hadoopizer.temp.input.header.file") + "_" + splitable.getId() + "_" + nb);
+                    Path headerFile = HadoopizerInputFormat.getInputHeaderFile(conf, splitable.getId(), nb);
                     inf.setHeaderTempFile(headerFile);
                     
                     Hadoopizer.logger.info("Found an input format class: " + inf.getClass().getCanonicalName());
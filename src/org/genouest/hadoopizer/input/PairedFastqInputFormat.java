@@ -0,0 +1,182 @@
+package org.genouest.hadoopizer.input;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.genouest.hadoopizer.Hadoopizer;
+import org.genouest.hadoopizer.JobConfig;
+import org.genouest.hadoopizer.JobInputFile;
+import org.genouest.hadoopizer.SplitableJobInput;
+import org.genouest.hadoopizer.io.ObjectWritableComparable;
+
+/**
+ * Split several fastq files containing the mates of paired reads, in the same order, without joining them first.
+ * The files are indexed when the job is submitted (the position of every 'hadoopizer.index.interval' records, see {@link HadoopizerInputFormat#getIndex(Configuration, FileStatus)}),
+ * and each {@link PairedFileSplit} covers the same records in all the files.
+ */
+public class PairedFastqInputFormat extends FileInputFormat<ObjectWritableComparable, ObjectWritable> {
+
+    /**
+     * Check if the files of a splitable input can be split together instead of being joined
+     *
+     * @param splitable the splitable input
+     * @param conf the job configuration
+     * @return true if there are several plain fastq files
+     * @throws IOException
+     */
+    public static boolean canCoSplit(SplitableJobInput splitable, Configuration conf) throws IOException {
+
+        if (!conf.getBoolean("hadoopizer.paired.cosplit", true) || splitable.getFiles().size() < 2)
+            return false;
+
+        CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+        for (JobInputFile file : splitable.getFiles()) {
+            Path path = new Path(file.getUrl());
+            if (file.isLoadAsSequence() || !file.getSplitterId().equalsIgnoreCase("fastq"))
+                return false;
+
+            if (!SplitLineReader.isRegularFile(path, conf) || codecs.getCodec(path) != null || SplitLineReader.isBlockCompressed(path, conf))
+                return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException {
+
+        Configuration conf = job.getConfiguration();
+        JobConfig config = new JobConfig();
+        config.load(conf.get("hadoopizer.job.config"));
+        SplitableJobInput splitable = (SplitableJobInput) config.getSplitableInput();
+
+        int nbFiles = splitable.getFiles().size();
+        FastqInputFormat fastq = new FastqInputFormat();
+
+        Path[] paths = new Path[nbFiles];
+        long[] lengths = new long[nbFiles];
+        RecordIndex[] indexes = new RecordIndex[nbFiles];
+        for (int i = 0; i < nbFiles; i++) {
+            paths[i] = new Path(splitable.getFiles().get(i).getUrl());
+            FileStatus status = paths[i].getFileSystem(conf).getFileStatus(paths[i]);
+            lengths[i] = status.getLen();
+            indexes[i] = fastq.getIndex(conf, status);
+
+            if (indexes[i].getTotalRecords() != indexes[0].getTotalRecords())
+                throw new IOException("Paired files don't have the same number of records: " + paths[0] + " (" + indexes[0].getTotalRecords() + ") and " + paths[i] + " (" + indexes[i].getTotalRecords() + ")");
+        }
+
+        // The splits are planned on the first file, like FileInputFormat would do, unless a number of records or bases was asked
+        FileStatus firstFile = paths[0].getFileSystem(conf).getFileStatus(paths[0]);
+        BlockLocation[] blkLocations = paths[0].getFileSystem(conf).getFileBlockLocations(firstFile, 0, lengths[0]);
+        long splitSize = computeSplitSize(firstFile.getBlockSize(), getMinSplitSize(job), getMaxSplitSize(job));
+
+        List<InputSplit> splits = new ArrayList<InputSplit>();
+        RecordIndex index = indexes[0];
+        int splitStart = 0;
+        long splitWeight = 0;
+        for (int k = 0; k < index.size(); k++) {
+            if (splitWeight > 0 && splitWeight >= getTarget(splitable, splitSize)) {
+                splits.add(createSplit(paths, lengths, indexes, splitStart, k, blkLocations));
+                splitStart = k;
+                splitWeight = 0;
+            }
+
+            if (splitable.getSplitRecords() > 0) {
+                splitWeight += index.getRecords(k);
+            }
+            else if (splitable.getSplitBases() > 0) {
+                for (RecordIndex fileIndex : indexes) {
+                    splitWeight += fileIndex.getBases(k);
+                }
+            }
+            else {
+                splitWeight += getEntryEnd(index, k, lengths[0]) - index.getOffset(k);
+            }
+        }
+
+        if (splitStart < index.size() || splits.isEmpty())
+            splits.add(createSplit(paths, lengths, indexes, splitStart, index.size(), blkLocations));
+
+        Hadoopizer.logger.info("Planned " + splits.size() + " paired splits from the index of the " + index.getTotalRecords() + " records of each of the " + nbFiles + " input files");
+
+        return splits;
+    }
+
+    /**
+     * Get the weight of a split
+     *
+     * @param splitable the splitable input
+     * @param splitSize the size of a split in bytes, when no number of records or bases was asked
+     * @return the number of records (in each file), of bases (in all the files) or of bytes (in the first file) of a split
+     */
+    private long getTarget(SplitableJobInput splitable, long splitSize) {
+
+        if (splitable.getSplitRecords() > 0)
+            return splitable.getSplitRecords();
+
+        if (splitable.getSplitBases() > 0)
+            return splitable.getSplitBases();
+
+        return splitSize;
+    }
+
+    /**
+     * Get the position of the end of an entry of an index
+     *
+     * @param index the index
+     * @param k the entry
+     * @param length the length of the file
+     * @return the position of the next entry, or the end of the file
+     */
+    private long getEntryEnd(RecordIndex index, int k, long length) {
+
+        return k + 1 < index.size() ? index.getOffset(k + 1) : length;
+    }
+
+    /**
+     * Create a split covering some entries of the indexes
+     *
+     * @param paths the files
+     * @param lengths the length of the files
+     * @param indexes the index of each file
+     * @param first the first entry of the split
+     * @param end the entry following the last entry of the split
+     * @param blkLocations the locations of the blocks of the first file
+     * @return the split
+     * @throws IOException
+     */
+    private PairedFileSplit createSplit(Path[] paths, long[] lengths, RecordIndex[] indexes, int first, int end, BlockLocation[] blkLocations) throws IOException {
+
+        long[] starts = new long[paths.length];
+        long[] splitLengths = new long[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            starts[i] = first < indexes[i].size() ? indexes[i].getOffset(first) : lengths[i];
+            splitLengths[i] = (end < indexes[i].size() ? indexes[i].getOffset(end) : lengths[i]) - starts[i];
+        }
+
+        String[] hosts = new String[0];
+        if (blkLocations.length > 0)
+            hosts = blkLocations[getBlockIndex(blkLocations, Math.min(starts[0], Math.max(0, lengths[0] - 1)))].getHosts();
+
+        return new PairedFileSplit(paths, starts, splitLengths, hosts);
+    }
+
+    @Override
+    public RecordReader<ObjectWritableComparable, ObjectWritable> createRecordReader(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+
+        return new PairedRecordReader();
+    }
+}
@@ -0,0 +1,123 @@
+package org.genouest.hadoopizer.input;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * A split made of a section of several files, covering the same records in each file (the mates of paired reads).
+ */
+public class PairedFileSplit extends InputSplit implements Writable {
+
+    private Path[] paths;
+    private long[] starts;
+    private long[] lengths;
+    private String[] hosts;
+
+    public PairedFileSplit() {
+
+    }
+
+    /**
+     * Create a PairedFileSplit
+     *
+     * @param paths the files
+     * @param starts the position of the first byte of the split in each file
+     * @param lengths the number of bytes of the split in each file
+     * @param hosts the list of hosts containing the data
+     */
+    public PairedFileSplit(Path[] paths, long[] starts, long[] lengths, String[] hosts) {
+
+        this.paths = paths;
+        this.starts = starts;
+        this.lengths = lengths;
+        this.hosts = hosts;
+    }
+
+    /**
+     * Get the number of files
+     *
+     * @return the number of files
+     */
+    public int getNbFiles() {
+
+        return paths.length;
+    }
+
+    /**
+     * Get the section of one of the files
+     *
+     * @param i the index of the file
+     * @return the section of the file
+     */
+    public FileSplit getFileSplit(int i) {
+
+        return new FileSplit(paths[i], starts[i], lengths[i], hosts);
+    }
+
+    @Override
+    public long getLength() {
+
+        long length = 0;
+        for (long l : lengths) {
+            length += l;
+        }
+
+        return length;
+    }
+
+    @Override
+    public String[] getLocations() {
+
+        if (hosts == null)
+            return new String[0];
+
+        return hosts;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+
+        out.writeInt(paths.length);
+        for (int i = 0; i < paths.length; i++) {
+            Text.writeString(out, paths[i].toString());
+            out.writeLong(starts[i]);
+            out.writeLong(lengths[i]);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+
+        int nb = in.readInt();
+        paths = new Path[nb];
+        starts = new long[nb];
+        lengths = new long[nb];
+        for (int i = 0; i < nb; i++) {
+            paths[i] = new Path(Text.readString(in));
+            starts[i] = in.readLong();
+            lengths[i] = in.readLong();
+        }
+
+        hosts = null;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < paths.length; i++) {
+            if (i > 0)
+                s.append(" + ");
+            s.append(paths[i]).append(":").append(starts[i]).append("+").append(lengths[i]);
+        }
+
+        return s.toString();
+    }
+}
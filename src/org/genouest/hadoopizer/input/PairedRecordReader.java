@@ -0,0 +1,135 @@
+package org.genouest.hadoopizer.input;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.genouest.hadoopizer.JobConfig;
+import org.genouest.hadoopizer.JobInputFile;
+import org.genouest.hadoopizer.SplitableJobInput;
+import org.genouest.hadoopizer.io.ObjectWritableComparable;
+
+/**
+ * Read a {@link PairedFileSplit}: the records of each file are returned one after the other
+ * (the first record of each file, then the second record of each file, ...), like an interleaved input.
+ * The mates of each pair must have the same name (ignoring the comment and a /1 or /2 suffix).
+ */
+public class PairedRecordReader extends RecordReader<ObjectWritableComparable, ObjectWritable> {
+
+    private FastqRecordReader[] readers;
+    private int current = -1; // The reader of the current record
+    private long nbPairs = 0;
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+
+        PairedFileSplit pairedSplit = (PairedFileSplit) split;
+        Configuration conf = context.getConfiguration();
+
+        JobConfig config = new JobConfig();
+        config.load(conf.get("hadoopizer.job.config"));
+        SplitableJobInput splitable = (SplitableJobInput) config.getSplitableInput();
+
+        readers = new FastqRecordReader[pairedSplit.getNbFiles()];
+        for (int i = 0; i < readers.length; i++) {
+            JobInputFile file = splitable.getFiles().get(i);
+            FileSplit fileSplit = pairedSplit.getFileSplit(i);
+
+            // There are multiple input: header temp file must have different names
+            HadoopizerInputFormat inf = file.getFileInputFormat();
+            inf.setHeaderTempFile(HadoopizerInputFormat.getInputHeaderFile(conf, splitable.getId(), i));
+
+            readers[i] = (FastqRecordReader) inf.createRecordReader(fileSplit, context);
+            readers[i].initialize(fileSplit, context);
+        }
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+
+        if (current >= 0 && current + 1 < readers.length) {
+            current++;
+            return true;
+        }
+
+        // Read the next pair
+        int nbRead = 0;
+        for (FastqRecordReader reader : readers) {
+            if (reader.nextKeyValue())
+                nbRead++;
+        }
+
+        if (nbRead == 0)
+            return false;
+
+        if (nbRead < readers.length)
+            throw new IOException("Paired files are not synchronized: some files have more records than the others after " + nbPairs + " pairs");
+
+        for (int i = 1; i < readers.length; i++) {
+            if (!isSameFragment(readers[0].getCurrentName(), readers[i].getCurrentName()))
+                throw new IOException("Paired files are not in the same order: '" + readers[0].getCurrentName() + "' is paired with '" + readers[i].getCurrentName()
+                        + "' (set hadoopizer.paired.cosplit to false to join the files by record name)");
+        }
+
+        nbPairs++;
+        current = 0;
+
+        return true;
+    }
+
+    /**
+     * Check if 2 records are the mates of a pair
+     *
+     * @param a the name of the first record
+     * @param b the name of the second record
+     * @return true if the 2 records have the same fragment name
+     */
+    private boolean isSameFragment(Text a, Text b) {
+
+        int lengthA = FastqRecordReader.getFragmentNameLength(a);
+        int lengthB = FastqRecordReader.getFragmentNameLength(b);
+
+        return lengthA == lengthB && WritableComparator.compareBytes(a.getBytes(), 0, lengthA, b.getBytes(), 0, lengthB) == 0;
+    }
+
+    @Override
+    public ObjectWritableComparable getCurrentKey() throws IOException, InterruptedException {
+
+        return readers[current].getCurrentKey();
+    }
+
+    @Override
+    public ObjectWritable getCurrentValue() throws IOException, InterruptedException {
+
+        return readers[current].getCurrentValue();
+    }
+
+    @Override
+    public float getProgress() throws IOException, InterruptedException {
+
+        float progress = 0;
+        for (FastqRecordReader reader : readers) {
+            progress += reader.getProgress();
+        }
+
+        return progress / readers.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        if (readers == null)
+            return;
+
+        for (FastqRecordReader reader : readers) {
+            if (reader != null)
+                reader.close();
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package org.genouest.hadoopizer.input;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MD5Hash;
+import org.genouest.hadoopizer.Hadoopizer;
+
+/**
+ * Position and number of bases (or residues) of each record of a file, used to plan splits.
+ * Records are added in the order of the file. An entry can also stand for several consecutive records (see {@link #addRecords(long)}).
+ * An index can be saved in the hdfs work dir or next to the file it describes (see {@link #save(Configuration, FileStatus, String)}), and reused while the file doesn't change.
+ */
+public class RecordIndex {
+
+    private static final String MAGIC = "HZIDX";
+    private static final int VERSION = 1;
+
+    private long[] offsets = new long[1024];
+    private long[] bases = new long[1024];
+    private long[] records = new long[1024];
+    private int size = 0;
+    private long totalBases = 0;
+    private long totalRecords = 0;
+
+    /**
+     * Add a record at the end of the index
+     *
+     * @param offset the position of the first byte of the record in the file
+     * @param nbBases the number of bases of the record
+     */
+    public void add(long offset, long nbBases) {
+
+        add(offset, 1, nbBases);
+    }
+
+    /**
+     * Add an entry at the end of the index
+     *
+     * @param offset the position of the first byte of the first record of the entry in the file
+     * @param nbRecords the number of records of the entry
+     * @param nbBases the number of bases of the entry
+     */
+    private void add(long offset, long nbRecords, long nbBases) {
+
+        if (size == offsets.length) {
+            long[] biggerOffsets = new long[size * 2];
+            long[] biggerBases = new long[size * 2];
+            long[] biggerRecords = new long[size * 2];
+            System.arraycopy(offsets, 0, biggerOffsets, 0, size);
+            System.arraycopy(bases, 0, biggerBases, 0, size);
+            System.arraycopy(records, 0, biggerRecords, 0, size);
+            offsets = biggerOffsets;
+            bases = biggerBases;
+            records = biggerRecords;
+        }
+
+        offsets[size] = offset;
+        bases[size] = nbBases;
+        records[size] = nbRecords;
+        size++;
+        totalBases += nbBases;
+        totalRecords += nbRecords;
+    }
+
+    /**
+     * Add records to the last entry of the index
+     *
+     * @param nbRecords the number of records following the first record of the last entry
+     */
+    public void addRecords(long nbRecords) {
+
+        records[size - 1] += nbRecords;
+        totalRecords += nbRecords;
+    }
+
+    /**
+     * Add bases to the last entry of the index
+     *
+     * @param nbBases the number of bases to add
+     */
+    public void addBases(long nbBases) {
+
+        bases[size - 1] += nbBases;
+        totalBases += nbBases;
+    }
+
+    /**
+     * Get the number of entries
+     *
+     * @return the number of entries in the index
+     */
+    public int size() {
+
+        return size;
+    }
+
+    /**
+     * Get the position of an entry
+     *
+     * @param i the index of the entry
+     * @return the position of the first byte of the first record of the entry in the file
+     */
+    public long getOffset(int i) {
+
+        return offsets[i];
+    }
+
+    /**
+     * Get the number of bases of an entry
+     *
+     * @param i the index of the entry
+     * @return the number of bases of the records of the entry
+     */
+    public long getBases(int i) {
+
+        return bases[i];
+    }
+
+    /**
+     * Get the number of records of an entry
+     *
+     * @param i the index of the entry
+     * @return the number of records of the entry
+     */
+    public long getRecords(int i) {
+
+        return records[i];
+    }
+
+    /**
+     * Get the number of bases of all the records
+     *
+     * @return the total number of bases
+     */
+    public long getTotalBases() {
+
+        return totalBases;
+    }
+
+    /**
+     * Get the number of records, including the ones grouped in an entry
+     *
+     * @return the total number of records
+     */
+    public long getTotalRecords() {
+
+        return totalRecords;
+    }
+
+    /**
+     * Get the path of the index of a file next to it: a hidden file in the same directory, ignored by FileInputFormat
+     *
+     * @param file the indexed file
+     * @return the path of the index
+     */
+    public static Path getIndexPath(Path file) {
+
+        return new Path(file.getParent(), "." + file.getName() + ".hzidx");
+    }
+
+    /**
+     * Get the path of the index of a file in the hdfs work dir ('hadoopizer.hdfs.tmp.dir'), named after the qualified path of the file
+     *
+     * @param conf the job configuration
+     * @param file the indexed file
+     * @return the path of the index, null if there is no work dir
+     * @throws IOException
+     */
+    public static Path getWorkIndexPath(Configuration conf, Path file) throws IOException {
+
+        String workDir = conf.get("hadoopizer.hdfs.tmp.dir");
+        if (workDir == null)
+            return null;
+
+        Path qualified = file.getFileSystem(conf).makeQualified(file);
+
+        return new Path(workDir + Path.SEPARATOR + "indexes" + Path.SEPARATOR + MD5Hash.digest(qualified.toString()) + "_" + file.getName() + ".hzidx");
+    }
+
+    /**
+     * Save the index of a file, for the next jobs.
+     * It is written in the hdfs work dir, or next to the file if 'hadoopizer.index.next.to.input' is true.
+     * It is first written to a temp file renamed once complete, so that an interrupted job never leaves a truncated index.
+     * The index is not saved (and a warning is logged) if the directory is not writable.
+     *
+     * @param conf the job configuration
+     * @param file the indexed file
+     * @param kind a description of the index content (format and interval between entries), checked when loading it
+     */
+    public void save(Configuration conf, FileStatus file, String kind) {
+
+        Path indexPath = null;
+        Path tempPath = null;
+        try {
+            if (conf.getBoolean("hadoopizer.index.next.to.input", false))
+                indexPath = getIndexPath(file.getPath());
+            else
+                indexPath = getWorkIndexPath(conf, file.getPath());
+
+            if (indexPath == null)
+                return;
+
+            FileSystem fs = indexPath.getFileSystem(conf);
+            tempPath = new Path(indexPath.getParent(), indexPath.getName() + "." + UUID.randomUUID() + ".tmp");
+            DataOutputStream out = fs.create(tempPath, true);
+            try {
+                out.writeUTF(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(kind);
+                out.writeLong(file.getLen());
+                out.writeLong(file.getModificationTime());
+                out.writeInt(size);
+                for (int i = 0; i < size; i++) {
+                    out.writeLong(offsets[i]);
+                    out.writeLong(records[i]);
+                    out.writeLong(bases[i]);
+                }
+            } finally {
+                out.close();
+            }
+
+            // rename() doesn't replace an existing file on hdfs
+            fs.delete(indexPath, false);
+            if (!fs.rename(tempPath, indexPath)) {
+                // Saved at the same time by another job
+                fs.delete(tempPath, false);
+                return;
+            }
+
+            Hadoopizer.logger.info("Saved the index of " + file.getPath() + " to " + indexPath);
+        } catch (IOException e) {
+            Hadoopizer.logger.warning("Failed to save the index of " + file.getPath() + " to " + indexPath + ": " + e.getMessage());
+            deleteQuietly(conf, tempPath);
+        }
+    }
+
+    /**
+     * Delete a file, ignoring the errors
+     *
+     * @param conf the job configuration
+     * @param path the file to delete, can be null
+     */
+    private static void deleteQuietly(Configuration conf, Path path) {
+
+        if (path == null)
+            return;
+
+        try {
+            path.getFileSystem(conf).delete(path, false);
+        } catch (IOException e) {
+            // Nothing more to do
+        }
+    }
+
+    /**
+     * Load the index of a file saved by a previous job, next to the file or in the hdfs work dir
+     *
+     * @param conf the job configuration
+     * @param file the indexed file
+     * @param kind a description of the index content (format and interval between entries)
+     * @return the index, null if there is none, or if it was built for another content or an older version of the file
+     * @throws IOException
+     */
+    public static RecordIndex load(Configuration conf, FileStatus file, String kind) throws IOException {
+
+        RecordIndex index = load(conf, getIndexPath(file.getPath()), file, kind);
+
+        Path workIndexPath = getWorkIndexPath(conf, file.getPath());
+        if (index == null && workIndexPath != null)
+            index = load(conf, workIndexPath, file, kind);
+
+        return index;
+    }
+
+    /**
+     * Load an index
+     *
+     * @param conf the job configuration
+     * @param indexPath the saved index
+     * @param file the indexed file
+     * @param kind a description of the index content (format and interval between entries)
+     * @return the index, null if there is none, or if it was built for another content or an older version of the file
+     */
+    private static RecordIndex load(Configuration conf, Path indexPath, FileStatus file, String kind) {
+
+        try {
+            FileSystem fs = indexPath.getFileSystem(conf);
+            if (!fs.exists(indexPath))
+                return null;
+
+            DataInputStream in = fs.open(indexPath);
+            try {
+                if (!in.readUTF().equals(MAGIC) || in.readInt() != VERSION || !in.readUTF().equals(kind))
+                    return null;
+
+                if (in.readLong() != file.getLen() || in.readLong() != file.getModificationTime()) {
+                    Hadoopizer.logger.info("Ignoring the index " + indexPath + ": " + file.getPath() + " was modified");
+                    return null;
+                }
+
+                RecordIndex index = new RecordIndex();
+                int nbEntries = in.readInt();
+                for (int i = 0; i < nbEntries; i++) {
+                    long offset = in.readLong();
+                    long nbRecords = in.readLong();
+                    index.add(offset, nbRecords, in.readLong());
+                }
+
+                Hadoopizer.logger.info("Using the index " + indexPath);
+
+                return index;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Hadoopizer.logger.warning("Failed to load the index " + indexPath + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
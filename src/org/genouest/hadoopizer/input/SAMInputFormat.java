@@ -5,8 +5,6 @@ import java.io.IOException;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.ObjectWritable;
-import org.apache.hadoop.io.compress.CompressionCodec;
-import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.JobContext;
@@ -30,9 +28,8 @@ public class SAMInputFormat extends HadoopizerInputFormat {
     @Override
     protected boolean isSplitable(JobContext context, Path filename) {
         
-        CompressionCodec codec = new CompressionCodecFactory(context.getConfiguration()).getCodec(filename);
-        
-        return codec == null;
+        // Plain text, or compressed with BGZF
+        return SplitLineReader.isSplitable(filename, context.getConfiguration());
     }
 
     @Override
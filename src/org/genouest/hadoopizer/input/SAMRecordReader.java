@@ -3,17 +3,12 @@ package org.genouest.hadoopizer.input;
 import java.io.IOException;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.compress.CompressionCodec;
-import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
-import org.apache.hadoop.util.LineReader;
 import org.genouest.hadoopizer.io.TaggedObjectWritable;
 import org.genouest.hadoopizer.io.ObjectWritableComparable;
 
@@ -22,11 +17,9 @@ import org.genouest.hadoopizer.io.ObjectWritableComparable;
  */
 public class SAMRecordReader extends HadoopizerRecordReader {
 
-    private long start;
     private long end;
-    private long pos;
 
-    private LineReader lineReader;
+    private SplitLineReader in;
     private String nextLine = "";
     Configuration conf;
 
@@ -44,56 +37,27 @@ public class SAMRecordReader extends HadoopizerRecordReader {
         FileSplit fileSplit = (FileSplit) split;
         conf = context.getConfiguration();
 
-        start = fileSplit.getStart();
-        end = start + fileSplit.getLength();
+        in = new SplitLineReader(fileSplit, conf);
+        end = in.getEnd();
         
-        Path path = fileSplit.getPath();
-        CompressionCodecFactory compressionCodecs = new CompressionCodecFactory(conf);
-        CompressionCodec codec = compressionCodecs.getCodec(path);
-        
-        FileSystem fs = path.getFileSystem(conf);
-        FSDataInputStream fsin = fs.open(path);
-        
-        if (codec != null) {
-            // Input file is compressed: it is not splitted => no need to seek
-            lineReader = new LineReader(codec.createInputStream(fsin), conf);
-            end = Long.MAX_VALUE;
-        }
-        else {
-            lineReader = new LineReader(fsin, conf);
-            if (start != 0) {
-                --start;
-                fsin.seek(start);
-            }
-        }
-        
-        pos = start;
-        
-        if (start != 0 && codec == null) { // Not the beginning of the whole file (impossible if compressed as there will only be 1 split)
-            // Not at the beginning of the file, throw away the first (probably incomplete) line
-            Text tmp = new Text("");
-            pos += lineReader.readLine(tmp);
-        }
-        
-        trackOrigin(conf, path);
+        trackOrigin(conf, fileSplit.getPath());
     }
     
     @Override
     public boolean nextKeyValue() throws IOException, InterruptedException {
         
-        if (pos >= end) // Reached the end of split
+        if (in.getPosition() >= end) // Reached the end of split
             return false;
 
         boolean foundRecord = false;
         
         while (!foundRecord) {
             Text newLine = new Text("");
-            int read = lineReader.readLine(newLine);
+            int read = in.readLine(newLine);
             
             if (read == 0)
                 return false;
             
-            pos += read;
             nextLine = newLine.toString();
             
             if (!nextLine.startsWith("@")) {
@@ -116,6 +80,36 @@ public class SAMRecordReader extends HadoopizerRecordReader {
         return true;
     }
 
+    @Override
+    public void extractHeader() throws IOException, InterruptedException {
+        
+        // The header lines are written while looking for the first record
+        nextKeyValue();
+        headerFinished();
+    }
+
+    @Override
+    public long getCurrentBases() {
+        
+        // SEQ is the 9th field after the read name, '*' if not stored
+        byte[] bytes = recordValue.getBytes();
+        int length = recordValue.getLength();
+        int field = 0;
+        int fieldStart = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || bytes[i] == '\t') {
+                if (field == 8) {
+                    int seqLength = i - fieldStart;
+                    return (seqLength == 1 && bytes[fieldStart] == '*') ? 0 : seqLength;
+                }
+                field++;
+                fieldStart = i + 1;
+            }
+        }
+        
+        return 0;
+    }
+
     @Override
     public ObjectWritableComparable getCurrentKey() throws IOException, InterruptedException {
 
@@ -144,17 +138,13 @@ public class SAMRecordReader extends HadoopizerRecordReader {
 
         super.close();
         
-        if (lineReader != null)
-            lineReader.close();
+        if (in != null)
+            in.close();
     }
 
     @Override
     public float getProgress() throws IOException {
 
-        if (start == end) {
-            return (float) 0;
-        } else {
-            return Math.min((float) 1.0, (pos - start) / (float)(end - start));
-        } 
+        return in.getProgress();
     }
 }
@@ -0,0 +1,398 @@
+package org.genouest.hadoopizer.input;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.sf.samtools.util.BlockCompressedInputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.LineReader;
+
+import fi.tkk.ics.hadoop.bam.util.BGZFSplitGuesser;
+import fi.tkk.ics.hadoop.bam.util.WrapSeekable;
+
+/**
+ * Read the lines of a file split, hiding how the file is stored:
+ * - plain text: the split is read as is
+ * - BGZF (block gzip, as produced by bgzip): the split is moved to the nearest BGZF block boundaries,
+ *   and positions are virtual file offsets (block address << 16 | offset in the uncompressed block)
+ * - bzip2: the same, with the bzip2 blocks (see {@link BZip2BlockInputStream})
+ * - other compression formats: the whole file is read, it can't be split
+ * When the split doesn't start at the beginning of the file, the first (probably incomplete) line is skipped.
+ * A line belongs to the split if its position is lower than {@link #getEnd()}: a line starting in a split
+ * is read entirely even if it ends in the next split.
+ */
+public class SplitLineReader {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private long start;
+    private long end;
+    private long pos;
+
+    private LineReader lineReader;
+
+    private InputStream blockIn; // BGZF or bzip2 blocks
+    private byte[] buffer; // Uncompressed content of the current block (or a part of it)
+    private long bufferStart; // Virtual offset of the first byte of the buffer
+    private int bufferLength = 0;
+    private int bufferPos = 0;
+    private boolean reachedEof = false;
+
+    /**
+     * Create a SplitLineReader
+     *
+     * @param split the split to read
+     * @param conf the job configuration
+     * @throws IOException
+     */
+    public SplitLineReader(FileSplit split, Configuration conf) throws IOException {
+
+        start = split.getStart();
+        end = start + split.getLength();
+
+        Path path = split.getPath();
+        FileSystem fs = path.getFileSystem(conf);
+
+        if (isBlockCompressed(path, conf)) {
+            openBlockCompressed(fs, path, conf);
+            return;
+        }
+
+        CompressionCodecFactory compressionCodecs = new CompressionCodecFactory(conf);
+        CompressionCodec codec = compressionCodecs.getCodec(path);
+
+        if (codec instanceof BZip2Codec) {
+            openBZip2(fs, path);
+            return;
+        }
+
+        FSDataInputStream fsin = fs.open(path);
+
+        if (codec != null) {
+            // Input file is compressed: it is not splitted => no need to seek
+            lineReader = new LineReader(codec.createInputStream(fsin), conf);
+            start = 0;
+            end = Long.MAX_VALUE;
+        }
+        else {
+            lineReader = new LineReader(fsin, conf);
+            if (start != 0) {
+                fsin.seek(start - 1);
+                pos = start - 1;
+
+                // Not at the beginning of the file, throw away the first (probably incomplete) line
+                readLine(new Text());
+                return;
+            }
+        }
+
+        pos = start;
+    }
+
+    /**
+     * Open a BGZF file, moving the split bounds to the next block boundaries
+     *
+     * @param fs the filesystem
+     * @param path the file
+     * @param conf the job configuration
+     * @throws IOException
+     */
+    private void openBlockCompressed(FileSystem fs, Path path, Configuration conf) throws IOException {
+
+        long fileLength = fs.getFileStatus(path).getLen();
+
+        FSDataInputStream fsin = fs.open(path);
+        BGZFSplitGuesser guesser = new BGZFSplitGuesser(fsin);
+        long startBlock = start == 0 ? 0 : guesser.guessNextBGZFBlockStart(start, fileLength);
+        long endBlock = end >= fileLength ? fileLength : guesser.guessNextBGZFBlockStart(end, fileLength);
+        fsin.close();
+
+        // The line starting at the very beginning of the end block is read by this split: the next one skips its first line
+        start = startBlock << 16;
+        end = (endBlock << 16) + 1;
+        pos = start;
+
+        buffer = new byte[BUFFER_SIZE];
+        BlockCompressedInputStream bgzfIn = new BlockCompressedInputStream(WrapSeekable.openPath(conf, path));
+        blockIn = bgzfIn;
+
+        if (startBlock >= fileLength) {
+            // No block starts in this split
+            reachedEof = true;
+            return;
+        }
+
+        if (startBlock != 0) {
+            bgzfIn.seek(start);
+
+            // Not at the beginning of the file, throw away the first (probably incomplete) line
+            readLine(new Text());
+        }
+    }
+
+    /**
+     * Open a bzip2 file, moving the split bounds to the next block boundaries
+     *
+     * @param fs the filesystem
+     * @param path the file
+     * @throws IOException
+     */
+    private void openBZip2(FileSystem fs, Path path) throws IOException {
+
+        long fileLength = fs.getFileStatus(path).getLen();
+
+        long endBlock = fileLength;
+        if (end < fileLength) {
+            FSDataInputStream fsin = fs.open(path);
+            fsin.seek(end);
+            endBlock = BZip2BlockInputStream.findBlock(new BufferedInputStream(fsin, BUFFER_SIZE), end);
+            fsin.close();
+
+            if (endBlock < 0)
+                endBlock = fileLength;
+        }
+
+        FSDataInputStream fsin = fs.open(path);
+        fsin.seek(start);
+        BZip2BlockInputStream bzip2In = new BZip2BlockInputStream(new BufferedInputStream(fsin, BUFFER_SIZE), start);
+        blockIn = bzip2In;
+        buffer = new byte[BUFFER_SIZE];
+
+        // The line starting at the very beginning of the end block is read by this split: the next one skips its first line
+        long startBlock = bzip2In.getNextBlockAddress();
+        if (start != 0)
+            start = startBlock << BZip2BlockInputStream.BLOCK_OFFSET_BITS;
+        end = (endBlock << BZip2BlockInputStream.BLOCK_OFFSET_BITS) + 1;
+        pos = start;
+
+        if (startBlock < 0 || startBlock >= endBlock) {
+            // No block starts in this split
+            reachedEof = true;
+            return;
+        }
+
+        if (start != 0) {
+            // Not at the beginning of the file, throw away the first (probably incomplete) line
+            readLine(new Text());
+        }
+    }
+
+    /**
+     * Check if a path is a regular file, which can be opened several times.
+     * The outputs streamed by the commands are named pipes: opening them to probe their content would lose the bytes read.
+     *
+     * @param path the path to check
+     * @param conf the job configuration
+     * @return false for directories, named pipes and other special files
+     * @throws IOException
+     */
+    public static boolean isRegularFile(Path path, Configuration conf) throws IOException {
+
+        FileSystem fs = path.getFileSystem(conf);
+        if (fs instanceof LocalFileSystem)
+            return ((LocalFileSystem) fs).pathToFile(path).isFile();
+        if (fs instanceof RawLocalFileSystem)
+            return ((RawLocalFileSystem) fs).pathToFile(path).isFile();
+
+        // No special files on distributed filesystems
+        return !fs.getFileStatus(path).isDir();
+    }
+
+    /**
+     * Check if a file is compressed with BGZF, whatever its extension.
+     * Only regular files are probed (see {@link #isRegularFile(Path, Configuration)}).
+     *
+     * @param path the file to check
+     * @param conf the job configuration
+     * @return true if the file starts with a BGZF block
+     * @throws IOException
+     */
+    public static boolean isBlockCompressed(Path path, Configuration conf) throws IOException {
+
+        if (!isRegularFile(path, conf))
+            return false;
+
+        FileSystem fs = path.getFileSystem(conf);
+
+        InputStream in = new BufferedInputStream(fs.open(path));
+        try {
+            return BlockCompressedInputStream.isValidFile(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Check if a file can be read by several splits: plain text, BGZF or bzip2
+     *
+     * @param path the file to check
+     * @param conf the job configuration
+     * @return true if the file can be splitted
+     */
+    public static boolean isSplitable(Path path, Configuration conf) {
+
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(path);
+        if (codec == null || codec instanceof BZip2Codec)
+            return true;
+
+        try {
+            return isBlockCompressed(path, conf);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read a line, without the line break
+     *
+     * @param line the object to store the line
+     * @return the number of bytes consumed (including the line break), 0 at the end of the file
+     * @throws IOException
+     */
+    public int readLine(Text line) throws IOException {
+
+        if (blockIn == null) {
+            int read = lineReader.readLine(line);
+            pos += read;
+
+            return read;
+        }
+
+        line.clear();
+        int consumed = 0;
+        boolean foundEol = false;
+        while (!foundEol && (bufferPos < bufferLength || fillBuffer())) {
+            int lineStart = bufferPos;
+            while (bufferPos < bufferLength && buffer[bufferPos] != '\n') {
+                bufferPos++;
+            }
+
+            line.append(buffer, lineStart, bufferPos - lineStart);
+            consumed += bufferPos - lineStart;
+
+            if (bufferPos < bufferLength) {
+                foundEol = true;
+                bufferPos++;
+                consumed++;
+            }
+        }
+
+        int length = line.getLength();
+        if (length > 0 && line.getBytes()[length - 1] == '\r')
+            line.set(line.getBytes(), 0, length - 1);
+
+        pos = bufferStart + bufferPos;
+
+        return consumed;
+    }
+
+    /**
+     * Load the next part of the current block in the buffer, or the next block
+     *
+     * @return false if the end of the file was reached
+     * @throws IOException
+     */
+    private boolean fillBuffer() throws IOException {
+
+        if (reachedEof)
+            return false;
+
+        // available() loads the next block if needed, and never goes past its end
+        int available = Math.min(blockIn.available(), buffer.length);
+        if (available <= 0) {
+            reachedEof = true;
+            return false;
+        }
+
+        if (blockIn instanceof BZip2BlockInputStream)
+            bufferStart = ((BZip2BlockInputStream) blockIn).getFilePointer();
+        else
+            bufferStart = ((BlockCompressedInputStream) blockIn).getFilePointer();
+        bufferLength = 0;
+        bufferPos = 0;
+        while (bufferLength < available) {
+            int read = blockIn.read(buffer, bufferLength, available - bufferLength);
+            if (read < 0)
+                break;
+            bufferLength += read;
+        }
+
+        return bufferLength > 0;
+    }
+
+    /**
+     * Get the position of the next line
+     *
+     * @return the position of the first byte of the next line (a virtual file offset for BGZF and bzip2 files)
+     * @throws IOException
+     */
+    public long getPosition() throws IOException {
+
+        if (blockIn != null && bufferPos >= bufferLength && fillBuffer()) {
+            // At the end of a block: the line starts at the beginning of the next one
+            pos = bufferStart;
+        }
+
+        return pos;
+    }
+
+    /**
+     * Get the position of the beginning of the split
+     *
+     * @return the position of the beginning of the split, 0 if it is the beginning of the file
+     */
+    public long getStart() {
+
+        return start;
+    }
+
+    /**
+     * Get the end of the split
+     *
+     * @return the position of the end of the split, the lines starting at this position or after are part of the next split
+     */
+    public long getEnd() {
+
+        return end;
+    }
+
+    /**
+     * Get the progress of the reading
+     *
+     * @return the progress, between 0 and 1
+     */
+    public float getProgress() {
+
+        if (start == end) {
+            return (float) 0;
+        } else {
+            return Math.min((float) 1.0, (pos - start) / (float)(end - start));
+        }
+    }
+
+    /**
+     * Close the file
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+
+        if (lineReader != null)
+            lineReader.close();
+
+        if (blockIn != null)
+            blockIn.close();
+    }
+}
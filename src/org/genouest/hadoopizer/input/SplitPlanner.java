@@ -0,0 +1,80 @@
+package org.genouest.hadoopizer.input;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.genouest.hadoopizer.Hadoopizer;
+
+/**
+ * Compute the size of the splits of a file so that they contain a given number of records or bases.
+ * The beginning of the file (hadoopizer.split.sample.size bytes) is read with the record reader of the input format
+ * to estimate the number of bytes per record or per base. For compressed files, these are compressed bytes.
+ */
+public class SplitPlanner {
+
+    private HadoopizerInputFormat format;
+    private Configuration conf;
+
+    /**
+     * Create a SplitPlanner
+     *
+     * @param format the input format used to read the file
+     * @param conf the job configuration
+     */
+    public SplitPlanner(HadoopizerInputFormat format, Configuration conf) {
+
+        this.format = format;
+        this.conf = conf;
+    }
+
+    /**
+     * Estimate the size of the splits of a file
+     *
+     * @param file the file to split
+     * @param records the number of records per split (0 if the splits are planned by bases)
+     * @param bases the number of bases per split (0 if the splits are planned by records)
+     * @return the split size in bytes, -1 if it can't be estimated (no record in the sample)
+     * @throws IOException
+     */
+    public long getSplitSize(FileStatus file, long records, long bases) throws IOException {
+
+        long sampleLength = Math.min(file.getLen(), conf.getLong("hadoopizer.split.sample.size", 16 * 1024 * 1024));
+        InputSplit sample = new FileSplit(file.getPath(), 0, sampleLength, null);
+        TaskAttemptContext context = new TaskAttemptContext(conf, new TaskAttemptID());
+
+        long sampledRecords = 0;
+        long sampledBases = 0;
+        HadoopizerRecordReader reader = null;
+        try {
+            reader = (HadoopizerRecordReader) format.createRecordReader(sample, context);
+            reader.initialize(sample, context);
+            while (reader.nextKeyValue()) {
+                sampledRecords++;
+                sampledBases += reader.getCurrentBases();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while sampling " + file.getPath(), e);
+        } finally {
+            if (reader != null)
+                reader.close();
+        }
+
+        long sampled = records > 0 ? sampledRecords : sampledBases;
+        long target = records > 0 ? records : bases;
+        String unit = records > 0 ? "records" : "bases";
+        if (sampled <= 0) {
+            Hadoopizer.logger.warning("No " + unit + " found in the first " + sampleLength + " bytes of " + file.getPath() + ", using the default split size");
+            return -1;
+        }
+
+        long splitSize = Math.max(1, (long) Math.ceil((double) target * sampleLength / sampled));
+        Hadoopizer.logger.info("Sampled " + sampled + " " + unit + " in the first " + sampleLength + " bytes of " + file.getPath() + ": using splits of " + splitSize + " bytes for " + target + " " + unit + " per split");
+
+        return splitSize;
+    }
+}
@@ -0,0 +1,110 @@
+package org.genouest.hadoopizer.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A BAM alignment record, kept in its binary form (as stored in a BAM file, without the leading block_size field).
+ * The records are only decoded when they need to be written as SAM text.
+ */
+public class BAMRecordWritable implements Writable {
+
+    private byte[] data = new byte[1024];
+    private int length = 0;
+
+    public BAMRecordWritable() {
+
+    }
+
+    /**
+     * Set the content of the record
+     *
+     * @param data the binary record
+     * @param length the length of the record, in bytes
+     */
+    public void set(byte[] data, int length) {
+
+        ensureCapacity(length);
+        System.arraycopy(data, 0, this.data, 0, length);
+        this.length = length;
+    }
+
+    /**
+     * Get the binary record. The returned array can be longer than the record.
+     *
+     * @return the binary record
+     */
+    public byte[] getBytes() {
+
+        return data;
+    }
+
+    public int getLength() {
+
+        return length;
+    }
+
+    /**
+     * Make sure the record can hold a given number of bytes, keeping the current content
+     *
+     * @param capacity the needed number of bytes
+     */
+    public void ensureCapacity(int capacity) {
+
+        if (data.length < capacity) {
+            byte[] bigger = new byte[Math.max(capacity, data.length * 2)];
+            System.arraycopy(data, 0, bigger, 0, length);
+            data = bigger;
+        }
+    }
+
+    /**
+     * Set the length of the record, after its content was written directly to {@link #getBytes()}
+     *
+     * @param length the length of the record, in bytes
+     */
+    public void setLength(int length) {
+
+        this.length = length;
+    }
+
+    /**
+     * Get the name of the read
+     *
+     * @return the name of the read
+     */
+    public String getReadName() {
+
+        // l_read_name (including the trailing NUL) is at offset 8, read_name at offset 32
+        int nameLength = data[8] & 0xff;
+
+        return new String(data, 32, Math.max(0, nameLength - 1));
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+
+        WritableUtils.writeVInt(out, length);
+        out.write(data, 0, length);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+
+        int newLength = WritableUtils.readVInt(in);
+        length = 0;
+        ensureCapacity(newLength);
+        in.readFully(data, 0, newLength);
+        length = newLength;
+    }
+
+    @Override
+    public String toString() {
+
+        return getReadName();
+    }
+}
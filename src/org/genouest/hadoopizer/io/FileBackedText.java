@@ -0,0 +1,185 @@
+package org.genouest.hadoopizer.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.genouest.hadoopizer.Hadoopizer;
+
+/**
+ * Text content stored in a local file instead of memory, used for records too large to be kept on the heap.
+ * The content is streamed from the file when it is written (to a chunk file or when serialized).
+ * When deserialized, the content is spilled to a new file in the temp dir of the task: as the text can be the size of a chromosome,
+ * the consumers of deserialized records call {@link #deleteReadFiles()} once they have written them.
+ */
+public class FileBackedText implements Writable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Set<File> readFiles = Collections.synchronizedSet(new HashSet<File>()); // Files created by readFields(), not deleted yet
+
+    private File file;
+    private long length;
+    private boolean ownsFile = false; // The file was created by readFields()
+
+    public FileBackedText() {
+
+    }
+
+    /**
+     * Create a FileBackedText
+     *
+     * @param file the file containing the text
+     * @param length the length of the text, in bytes
+     */
+    public FileBackedText(File file, long length) {
+
+        set(file, length);
+    }
+
+    public void set(File file, long length) {
+
+        if (ownsFile)
+            delete();
+
+        this.file = file;
+        this.ownsFile = false;
+        this.length = length;
+    }
+
+    public File getFile() {
+
+        return file;
+    }
+
+    public long getLength() {
+
+        return length;
+    }
+
+    /**
+     * Copy the text to a stream
+     *
+     * @param out the stream to write to
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Delete the file containing the text
+     */
+    public void delete() {
+
+        if (file != null && file.exists() && !file.delete())
+            Hadoopizer.logger.warning("Cannot delete temporary file: " + file.getAbsolutePath());
+
+        readFiles.remove(file);
+        ownsFile = false;
+    }
+
+    /**
+     * Delete the files created by readFields() for all the FileBackedText deserialized so far.
+     * The deserialized texts can't be written anymore after this call.
+     */
+    public static void deleteReadFiles() {
+
+        synchronized (readFiles) {
+            for (File f : readFiles) {
+                if (f.exists() && !f.delete())
+                    Hadoopizer.logger.warning("Cannot delete temporary file: " + f.getAbsolutePath());
+            }
+            readFiles.clear();
+        }
+    }
+
+    @Override
+    public void write(final DataOutput out) throws IOException {
+
+        WritableUtils.writeVLong(out, length);
+        writeTo(new OutputStream() {
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+        });
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+
+        // A reused object doesn't need its previous content anymore
+        if (ownsFile)
+            delete();
+
+        length = WritableUtils.readVLong(in);
+        file = Hadoopizer.createTempFile(new File(System.getProperty("java.io.tmpdir")), "hadoopizer_text_", ".tmp");
+        ownsFile = true;
+        readFiles.add(file);
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int size = (int) Math.min(buffer.length, remaining);
+                in.readFully(buffer, 0, size);
+                out.write(buffer, 0, size);
+                remaining -= size;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load the whole text in memory, avoid it for large files
+     */
+    @Override
+    public String toString() {
+
+        try {
+            byte[] content = new byte[(int) length];
+            InputStream in = new FileInputStream(file);
+            try {
+                int offset = 0;
+                int read;
+                while (offset < content.length && (read = in.read(content, offset, content.length - offset)) > 0) {
+                    offset += read;
+                }
+            } finally {
+                in.close();
+            }
+
+            return Text.decode(content);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + file.getAbsolutePath(), e);
+        }
+    }
+}
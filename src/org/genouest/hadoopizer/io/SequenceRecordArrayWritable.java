@@ -0,0 +1,107 @@
+package org.genouest.hadoopizer.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * The {@link SequenceRecordWritable} records having the same key, once the inputs were joined.
+ * It is serialized as the number of records followed by the records, without any class name.
+ * Like a joined ObjectWritable, {@link #get()} returns an array with one record per input file.
+ */
+public class SequenceRecordArrayWritable extends ObjectWritable {
+
+    private SequenceRecordWritable[] records = new SequenceRecordWritable[0];
+
+    public SequenceRecordArrayWritable() {
+
+    }
+
+    /**
+     * Create a SequenceRecordArrayWritable
+     *
+     * @param records the records (not copied)
+     */
+    public SequenceRecordArrayWritable(SequenceRecordWritable[] records) {
+
+        this.records = records;
+    }
+
+    /**
+     * Get the records
+     *
+     * @return an array of {@link SequenceRecordWritable}
+     */
+    @Override
+    public Object get() {
+
+        return records;
+    }
+
+    @Override
+    public Class<?> getDeclaredClass() {
+
+        return SequenceRecordWritable[].class;
+    }
+
+    /**
+     * Set the records
+     *
+     * @param instance an array of {@link SequenceRecordWritable} (not copied), or another SequenceRecordArrayWritable
+     */
+    @Override
+    public void set(Object instance) {
+
+        if (instance instanceof SequenceRecordArrayWritable)
+            instance = ((SequenceRecordArrayWritable) instance).get();
+
+        if (!(instance instanceof SequenceRecordWritable[]))
+            throw new IllegalArgumentException("A SequenceRecordArrayWritable can only be set from an array of SequenceRecordWritable, not from " + (instance == null ? "null" : instance.getClass().getName()));
+
+        records = (SequenceRecordWritable[]) instance;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+
+        WritableUtils.writeVInt(out, records.length);
+        for (SequenceRecordWritable record : records) {
+            record.write(out);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+
+        int nbRecords = WritableUtils.readVInt(in);
+        if (records.length != nbRecords) {
+            SequenceRecordWritable[] resized = new SequenceRecordWritable[nbRecords];
+            System.arraycopy(records, 0, resized, 0, Math.min(records.length, nbRecords));
+            records = resized;
+        }
+
+        for (int i = 0; i < nbRecords; i++) {
+            if (records[i] == null)
+                records[i] = new SequenceRecordWritable();
+
+            records[i].readFields(in);
+        }
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder();
+        for (SequenceRecordWritable record : records) {
+            if (sb.length() > 0)
+                sb.append(", ");
+
+            sb.append(record.getInputId()).append(": ").append(record.getName());
+        }
+
+        return sb.toString();
+    }
+}
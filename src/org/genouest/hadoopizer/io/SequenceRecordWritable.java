@@ -0,0 +1,178 @@
+package org.genouest.hadoopizer.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * A sequence record (fastq read or fasta sequence) with the id of the input it was read from.
+ * It is serialized as a one-byte tag (the input id, and a flag telling if the record has qualities),
+ * followed by the name, the bases and the qualities as length-prefixed bytes,
+ * without any class name: it replaces the ObjectWritable, {@link TaggedObjectWritable}, ObjectWritable and Text chain used for other records.
+ * It extends ObjectWritable so that it can be returned by the record readers and given to the record writers, {@link #get()} returning the record itself.
+ * When a job declares it as its map output value class, it crosses the shuffle in its compact form.
+ * Wrapped in an ObjectWritable, it is still serialized compactly, after its class name.
+ */
+public class SequenceRecordWritable extends ObjectWritable {
+
+    private static final byte[] QUALITY_SEPARATOR = new byte[] {'\n', '+', '\n'};
+    private static final int QUALITIES_FLAG = 0x80; // Bit of the tag set when the record has qualities
+
+    private int inputId = 0;
+    private Text name = new Text();
+    private Text bases = new Text();
+    private Text qualities = new Text();
+    private boolean hasQualities = false;
+
+    public SequenceRecordWritable() {
+
+    }
+
+    /**
+     * Set the content of the record
+     *
+     * @param inputId the id of the input the record was read from (0 to 127)
+     * @param name the name of the record, without the leading '@' or '>'
+     * @param bases the sequence of the record
+     * @param qualities the qualities of the record, null for a fasta record
+     */
+    public void set(int inputId, Text name, Text bases, Text qualities) {
+
+        setInputId(inputId);
+        this.name.set(name);
+        this.bases.set(bases);
+        hasQualities = qualities != null;
+        if (hasQualities)
+            this.qualities.set(qualities);
+        else
+            this.qualities.clear();
+    }
+
+    /**
+     * Copy the content of another record (the values given to a reducer are reused by Hadoop)
+     *
+     * @param other the record to copy
+     */
+    public void set(SequenceRecordWritable other) {
+
+        set(other.inputId, other.name, other.bases, other.hasQualities ? other.qualities : null);
+    }
+
+    public void setInputId(int inputId) {
+
+        if (inputId < 0 || inputId >= QUALITIES_FLAG)
+            throw new IllegalArgumentException("Input id out of range for a sequence record: " + inputId);
+
+        this.inputId = inputId;
+    }
+
+    public int getInputId() {
+
+        return inputId;
+    }
+
+    public Text getName() {
+
+        return name;
+    }
+
+    public Text getBases() {
+
+        return bases;
+    }
+
+    /**
+     * Get the qualities of the record
+     *
+     * @return the qualities, null for a fasta record
+     */
+    public Text getQualities() {
+
+        return hasQualities ? qualities : null;
+    }
+
+    /**
+     * Write the record as it was read in the fastq file: the sequence, a '+' line and the qualities, without the name line nor the final newline.
+     * Only the sequence is written for a fasta record.
+     *
+     * @param out the stream to write to
+     * @throws IOException
+     */
+    public void writeText(DataOutput out) throws IOException {
+
+        out.write(bases.getBytes(), 0, bases.getLength());
+        if (hasQualities) {
+            out.write(QUALITY_SEPARATOR);
+            out.write(qualities.getBytes(), 0, qualities.getLength());
+        }
+    }
+
+    /**
+     * Get the record itself, like an ObjectWritable returns the object it wraps
+     */
+    @Override
+    public Object get() {
+
+        return this;
+    }
+
+    @Override
+    public Class<?> getDeclaredClass() {
+
+        return getClass();
+    }
+
+    /**
+     * Copy the content of another record: a SequenceRecordWritable can't wrap other objects
+     *
+     * @param instance a SequenceRecordWritable
+     */
+    @Override
+    public void set(Object instance) {
+
+        if (!(instance instanceof SequenceRecordWritable))
+            throw new IllegalArgumentException("A SequenceRecordWritable can only be set from another SequenceRecordWritable, not from " + (instance == null ? "null" : instance.getClass().getName()));
+
+        if (instance != this)
+            set((SequenceRecordWritable) instance);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+
+        out.writeByte(hasQualities ? inputId | QUALITIES_FLAG : inputId);
+        name.write(out);
+        bases.write(out);
+        if (hasQualities)
+            qualities.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+
+        int tag = in.readUnsignedByte();
+        inputId = tag & ~QUALITIES_FLAG;
+        hasQualities = (tag & QUALITIES_FLAG) != 0;
+        name.readFields(in);
+        bases.readFields(in);
+        if (hasQualities)
+            qualities.readFields(in);
+        else
+            qualities.clear();
+    }
+
+    /**
+     * Get the record like the Text value of the other records: the sequence, then a '+' line and the qualities for a fastq record
+     */
+    @Override
+    public String toString() {
+
+        if (!hasQualities)
+            return bases.toString();
+
+        return bases.toString() + "\n+\n" + qualities.toString();
+    }
+}
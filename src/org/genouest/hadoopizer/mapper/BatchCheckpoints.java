@@ -0,0 +1,125 @@
+package org.genouest.hadoopizer.mapper;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.genouest.hadoopizer.Hadoopizer;
+
+/**
+ * Outputs of the finished batches of a split, saved in the hadoopizer temp dir so that a new attempt on the same split
+ * doesn't need to launch the commands again.
+ * The batches are identified by their index in the split: the records of each batch are the same from one attempt to another
+ * as long as the split and the batch limits don't change.
+ */
+public class BatchCheckpoints {
+
+    private FileSystem fs;
+    private Path splitDir;
+    private String attemptId;
+
+    /**
+     * Create a BatchCheckpoints
+     *
+     * @param conf the job configuration
+     * @param split the split processed by the task
+     * @param batchLimits a description of the batch limits (checkpoints are ignored if it changes)
+     * @param attemptId the id of the task attempt
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public BatchCheckpoints(Configuration conf, InputSplit split, String batchLimits, String attemptId) throws IOException, InterruptedException {
+
+        this.attemptId = attemptId;
+
+        String splitId;
+        if (split instanceof FileSplit) {
+            FileSplit fileSplit = (FileSplit) split;
+            splitId = fileSplit.getPath() + ":" + fileSplit.getStart() + "+" + fileSplit.getLength();
+        }
+        else {
+            splitId = split.toString();
+        }
+
+        splitDir = new Path(conf.get("hadoopizer.hdfs.tmp.dir") + Path.SEPARATOR + "checkpoints" + Path.SEPARATOR + MD5Hash.digest(splitId + " " + batchLimits));
+        fs = splitDir.getFileSystem(conf);
+
+        if (fs.exists(splitDir))
+            Hadoopizer.logger.info("Found checkpoints from a previous attempt in " + splitDir);
+    }
+
+    /**
+     * Check if the outputs of a batch were saved by a previous attempt
+     *
+     * @param index the batch index
+     * @return true if the batch was already processed
+     * @throws IOException
+     */
+    public boolean isDone(int index) throws IOException {
+
+        return fs.exists(getBatchDir(index));
+    }
+
+    /**
+     * Get the path where an output of a batch was saved
+     *
+     * @param index the batch index
+     * @param outputId the output id
+     * @return the path of the saved output
+     */
+    public Path getOutputPath(int index, String outputId) {
+
+        return new Path(getBatchDir(index), outputId);
+    }
+
+    /**
+     * Save the outputs of a finished batch
+     *
+     * @param batch the batch
+     * @param outputIds the ids of the outputs to save
+     * @throws IOException
+     */
+    public void save(CommandBatch batch, Iterable<String> outputIds) throws IOException {
+
+        // Copy to a temp dir first: a batch dir only exists once complete
+        Path batchDir = getBatchDir(batch.getIndex());
+        Path tempDir = new Path(batchDir.toString() + "_" + attemptId);
+        fs.delete(tempDir, true);
+
+        for (String outputId : outputIds) {
+            File outFile = batch.getOutputFile(outputId);
+            fs.copyFromLocalFile(false, true, new Path(outFile.toURI()), new Path(tempDir, outputId));
+        }
+
+        if (fs.exists(batchDir) || !fs.rename(tempDir, batchDir)) {
+            // Already saved by a speculative attempt
+            fs.delete(tempDir, true);
+        }
+    }
+
+    /**
+     * Remove the checkpoints of the split, once all its records have been emitted
+     *
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+
+        fs.delete(splitDir, true);
+    }
+
+    /**
+     * Get the directory where the outputs of a batch are saved
+     *
+     * @param index the batch index
+     * @return the batch directory
+     */
+    private Path getBatchDir(int index) {
+
+        return new Path(splitDir, "batch_" + index);
+    }
+}
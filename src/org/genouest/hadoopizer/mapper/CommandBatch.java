@@ -0,0 +1,284 @@
+package org.genouest.hadoopizer.mapper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.genouest.hadoopizer.io.ObjectWritableComparable;
+import org.genouest.hadoopizer.output.HadoopizerOutputFormat;
+
+/**
+ * A sub-batch of the split: the records written to the input chunk file(s), the command launched on them and the files it produces.
+ */
+public class CommandBatch {
+
+    private int index;
+    private ScratchAllocator scratch;
+    private boolean replay = false;
+    private int slot;
+    private ShellCommand command;
+    private ArrayList<File> inputFiles = new ArrayList<File>();
+    private ArrayList<DataOutputStream> streams = new ArrayList<DataOutputStream>();
+    private ArrayList<RecordWriter<ObjectWritableComparable, ObjectWritable>> writers = new ArrayList<RecordWriter<ObjectWritableComparable, ObjectWritable>>();
+    private HashMap<String, File> outputFiles = new HashMap<String, File>();
+    private HashMap<String, Future<?>> streamParsers = new HashMap<String, Future<?>>();
+    private long nbRecords = 0;
+
+    /**
+     * Create a CommandBatch
+     *
+     * @param index the position of the batch in the split (starting from 0)
+     * @param scratch the allocator which created the temporary files of the batch
+     */
+    public CommandBatch(int index, ScratchAllocator scratch) {
+
+        this.index = index;
+        this.scratch = scratch;
+    }
+
+    /**
+     * Get the position of the batch in the split
+     *
+     * @return the index
+     */
+    public int getIndex() {
+
+        return index;
+    }
+
+    /**
+     * Get the process slot where the command of this batch runs
+     *
+     * @return the slot (from 0 to the number of concurrent commands - 1)
+     */
+    public int getSlot() {
+
+        return slot;
+    }
+
+    /**
+     * Set the process slot where the command of this batch runs
+     *
+     * @param slot the slot
+     */
+    public void setSlot(int slot) {
+
+        this.slot = slot;
+    }
+
+    /**
+     * Is this batch replayed from the outputs saved by a previous attempt?
+     *
+     * @return true if the command doesn't need to be launched
+     */
+    public boolean isReplay() {
+
+        return replay;
+    }
+
+    /**
+     * Set whether this batch is replayed from the outputs saved by a previous attempt
+     *
+     * @param replay true if the command doesn't need to be launched
+     */
+    public void setReplay(boolean replay) {
+
+        this.replay = replay;
+    }
+
+    /**
+     * Get the command launched on this batch
+     *
+     * @return the command
+     */
+    public ShellCommand getCommand() {
+
+        return command;
+    }
+
+    /**
+     * Set the command launched on this batch
+     *
+     * @param command the command
+     */
+    public void setCommand(ShellCommand command) {
+
+        this.command = command;
+    }
+
+    /**
+     * Register a local file used by the command as input (regular file or named pipe), it will be deleted with the batch
+     *
+     * @param file the input file
+     */
+    public void addInputFile(File file) {
+
+        inputFiles.add(file);
+    }
+
+    /**
+     * Open a writer for an input of the command. Writers must be added in the order of the input ids.
+     *
+     * @param context the task context
+     * @param outf the OutputFormat used to write the records
+     * @param out the stream where records are written
+     * @param headerTempFile Path containing the header to prepend to the chunk
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void addWriter(TaskAttemptContext context, HadoopizerOutputFormat outf, OutputStream out, Path headerTempFile) throws IOException, InterruptedException {
+
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(out));
+        streams.add(stream);
+        writers.add(outf.getRecordWriter(context, stream, headerTempFile));
+    }
+
+    /**
+     * Write a record to the input chunk
+     *
+     * @param inputId the id of the input the record comes from
+     * @param key the record key
+     * @param value the record value
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void write(int inputId, ObjectWritableComparable key, ObjectWritable value) throws IOException, InterruptedException {
+
+        if (inputId >= writers.size())
+            throw new RuntimeException("Unexpected input data.");
+
+        writers.get(inputId).write(key, value);
+    }
+
+    /**
+     * Count one more record in this batch
+     */
+    public void recordWritten() {
+
+        nbRecords++;
+    }
+
+    /**
+     * Get the number of records written to this batch
+     *
+     * @return the number of records
+     */
+    public long getNbRecords() {
+
+        return nbRecords;
+    }
+
+    /**
+     * Get the number of bytes written to the input chunk(s)
+     *
+     * @return the number of bytes
+     */
+    public long getNbBytes() {
+
+        long bytes = 0;
+        for (DataOutputStream stream : streams) {
+            bytes += stream.size();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Close the input chunk writers (sends EOF to the command if it is reading a stream)
+     *
+     * @param context the task context
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void closeWriters(TaskAttemptContext context) throws IOException, InterruptedException {
+
+        for (RecordWriter<ObjectWritableComparable, ObjectWritable> writer : writers) {
+            writer.close(context);
+        }
+    }
+
+    /**
+     * Register a local file where the command writes an output
+     *
+     * @param outputId the output id
+     * @param file the output file
+     */
+    public void addOutputFile(String outputId, File file) {
+
+        outputFiles.put(outputId, file);
+    }
+
+    /**
+     * Get the local file where the command writes an output
+     *
+     * @param outputId the output id
+     * @return the output file
+     */
+    public File getOutputFile(String outputId) {
+
+        return outputFiles.get(outputId);
+    }
+
+    /**
+     * Register the task parsing a streamed output while the command is running
+     *
+     * @param outputId the output id
+     * @param streamParser the parsing task
+     */
+    public void addStreamParser(String outputId, Future<?> streamParser) {
+
+        streamParsers.put(outputId, streamParser);
+    }
+
+    /**
+     * Get the task parsing a streamed output
+     *
+     * @param outputId the output id
+     * @return the parsing task (null if the output is not streamed or if the command was not launched)
+     */
+    public Future<?> getStreamParser(String outputId) {
+
+        return streamParsers.get(outputId);
+    }
+
+    /**
+     * Remove the temporary input files of the batch
+     */
+    public void deleteInputFiles() {
+
+        for (File file : inputFiles) {
+            scratch.delete(file);
+        }
+    }
+
+    /**
+     * Remove a temporary output file of the batch
+     *
+     * @param outputId the output id
+     */
+    public void deleteOutputFile(String outputId) {
+
+        scratch.delete(outputFiles.get(outputId));
+    }
+
+    /**
+     * Remove all the temporary files of the batch
+     */
+    public void deleteFiles() {
+
+        deleteInputFiles();
+
+        for (String outputId : outputFiles.keySet()) {
+            deleteOutputFile(outputId);
+        }
+    }
+}
@@ -4,18 +4,37 @@ import java.io.IOException;
 
 import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.genouest.hadoopizer.io.FileBackedText;
 import org.genouest.hadoopizer.io.ObjectWritableComparable;
+import org.genouest.hadoopizer.io.SequenceRecordWritable;
+import org.genouest.hadoopizer.io.TaggedObjectWritable;
 
 
 /**
  * The Class IdentityMapper: don't change anything to key-value received.
+ * {@link SequenceRecordWritable} values are only wrapped in the usual ObjectWritable and {@link TaggedObjectWritable}
+ * when some other input produces other values (the map output value class of the job is not SequenceRecordWritable).
  */
 
 public class IdentityMapper extends Mapper<ObjectWritableComparable, ObjectWritable, ObjectWritableComparable, ObjectWritable> {
 
+    private boolean compact;
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+        compact = context.getMapOutputValueClass() == SequenceRecordWritable.class;
+    }
 
     @Override
     protected void map(ObjectWritableComparable key, ObjectWritable value, Context context) throws IOException, InterruptedException {
+        if (!compact && value instanceof SequenceRecordWritable) {
+            int inputId = ((SequenceRecordWritable) value).getInputId();
+            value = new ObjectWritable(new TaggedObjectWritable(inputId, new ObjectWritable(value)));
+        }
+
         context.write(key, value);
+
+        // A long sequence read from a sequence file was deserialized to a temp file, it is now serialized in the map output
+        FileBackedText.deleteReadFiles();
     }
 }
@@ -0,0 +1,388 @@
+package org.genouest.hadoopizer.mapper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.genouest.hadoopizer.Hadoopizer;
+
+/**
+ * Thread sampling the resources used by a process and all its descendants, reading /proc (Linux only).
+ * CPU times and io bytes include the descendants already waited for (they are added to their parent by the kernel),
+ * but a process exiting between two samples is missed if its parent is not in the tree anymore.
+ * As /proc/<pid> disappears once the process is waited for, the shell running the command saves its own totals when it exits
+ * (see {@link #getExitTrap(File)}): they are read by {@link #finish(File)}, so that short commands are not missed.
+ * The peak resident memory only comes from the samples.
+ */
+public class ProcessSampler extends Thread {
+
+    private static final long CLOCK_TICKS = getConf("CLK_TCK", 100);
+    private static final long PAGE_SIZE = getConf("PAGESIZE", 4096);
+
+    private int pid;
+    private long interval;
+    private volatile boolean running = true;
+
+    private long startTime;
+    private long wallTime = 0;
+    private long userTime = 0; // ms
+    private long sysTime = 0; // ms
+    private long peakRss = 0; // bytes
+    private long readBytes = 0;
+    private long writeBytes = 0;
+
+    /**
+     * Create a ProcessSampler
+     *
+     * @param pid the pid of the process to sample, -1 if unknown (only the totals saved at exit are read)
+     * @param interval the time between two samples (ms)
+     */
+    public ProcessSampler(int pid, long interval) {
+
+        super("sampler " + pid);
+
+        this.pid = pid;
+        this.interval = interval;
+        this.startTime = System.currentTimeMillis();
+
+        setDaemon(true);
+    }
+
+    /**
+     * Get the pid of a running process
+     *
+     * @param process the process
+     * @return the pid, or -1 if it is not available on this platform
+     */
+    public static int getPid(Process process) {
+
+        try {
+            // Only available through reflection before Java 9
+            Field f = process.getClass().getDeclaredField("pid");
+            f.setAccessible(true);
+            return f.getInt(process);
+        } catch (Exception e) {
+            Hadoopizer.logger.warning("Cannot get the pid of " + process.getClass().getName() + ": " + e);
+            return -1;
+        }
+    }
+
+    /**
+     * Check if the totals of a command can be saved at exit by its interpreter (it must be a POSIX shell)
+     *
+     * @param interpreter the interpreter line of the script (e.g. #!/bin/bash)
+     * @return true if the interpreter is a shell
+     */
+    public static boolean canTrapExit(String interpreter) {
+
+        if (interpreter == null || !interpreter.startsWith("#!"))
+            return false;
+
+        // Last word which is not an option: "#!/bin/bash -e", "#!/usr/bin/env bash"
+        String shell = null;
+        for (String word : interpreter.substring(2).trim().split("\\s+")) {
+            if (!word.startsWith("-"))
+                shell = word;
+        }
+        if (shell == null)
+            return false;
+
+        shell = shell.substring(shell.lastIndexOf('/') + 1);
+
+        return shell.equals("sh") || shell.equals("bash") || shell.equals("dash") || shell.equals("ksh") || shell.equals("zsh");
+    }
+
+    /**
+     * Get the shell line saving the totals of the script shell when it exits: its stat (including the CPU times of the children it waited for)
+     * and its io (including the bytes of the children it waited for)
+     *
+     * @param statsFile the file where the totals are saved
+     * @return the trap line to write at the beginning of the script
+     */
+    public static String getExitTrap(File statsFile) {
+
+        return "trap 'cat /proc/$$/stat /proc/$$/io > \"" + statsFile.getAbsolutePath() + "\" 2>/dev/null' EXIT";
+    }
+
+    /**
+     * Check if the resources can be sampled on this platform
+     *
+     * @return true if /proc is available
+     */
+    public static boolean isSupported() {
+
+        return new File("/proc/self/stat").exists();
+    }
+
+    @Override
+    public void run() {
+
+        while (running) {
+            sample();
+
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Stop sampling, the process has exited
+     *
+     * @param statsFile the file where the process saved its totals when it exited (see {@link #getExitTrap(File)}), null if none
+     */
+    public void finish(File statsFile) {
+
+        running = false;
+        interrupt();
+
+        try {
+            join();
+        } catch (InterruptedException e) {
+            // Keep the last values
+        }
+
+        wallTime = System.currentTimeMillis() - startTime;
+
+        if (statsFile != null && statsFile.exists()) {
+            readTotals(statsFile);
+            if (!statsFile.delete())
+                Hadoopizer.logger.warning("Cannot delete stats file: " + statsFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Read the totals saved by the process when it exited: the first line is its stat, followed by its io
+     *
+     * @param statsFile the file where the totals were saved
+     */
+    private void readTotals(File statsFile) {
+
+        String[] stat = readStat(statsFile);
+        if (stat == null) {
+            // The command replaced the shell (exec) or set its own exit trap
+            Hadoopizer.logger.warning("No resources saved at exit, using the sampled values only");
+            return;
+        }
+
+        // Totals can't be lower than the sampled values, but the sampled values can include children not waited for
+        userTime = Math.max(userTime, (Long.parseLong(stat[11]) + Long.parseLong(stat[13])) * 1000 / CLOCK_TICKS);
+        sysTime = Math.max(sysTime, (Long.parseLong(stat[12]) + Long.parseLong(stat[14])) * 1000 / CLOCK_TICKS);
+
+        long[] io = readIo(statsFile);
+        readBytes = Math.max(readBytes, io[0]);
+        writeBytes = Math.max(writeBytes, io[1]);
+    }
+
+    /**
+     * Read the resources used by the process tree
+     */
+    private void sample() {
+
+        // Find all the descendants of the process
+        HashMap<Integer, ArrayList<Integer>> children = new HashMap<Integer, ArrayList<Integer>>();
+        HashMap<Integer, String[]> stats = new HashMap<Integer, String[]>();
+        File[] procs = new File("/proc").listFiles();
+        if (procs == null)
+            return;
+
+        for (File proc : procs) {
+            String name = proc.getName();
+            if (name.isEmpty() || !Character.isDigit(name.charAt(0)))
+                continue;
+
+            String[] stat = readStat(new File(proc, "stat"));
+            if (stat == null)
+                continue;
+
+            int p = Integer.parseInt(name);
+            int ppid = Integer.parseInt(stat[1]);
+            stats.put(p, stat);
+            ArrayList<Integer> c = children.get(ppid);
+            if (c == null) {
+                c = new ArrayList<Integer>();
+                children.put(ppid, c);
+            }
+            c.add(p);
+        }
+
+        if (!stats.containsKey(pid))
+            return;
+
+        long user = 0, sys = 0, rss = 0, read = 0, write = 0;
+        ArrayList<Integer> tree = new ArrayList<Integer>();
+        tree.add(pid);
+        for (int i = 0; i < tree.size(); i++) {
+            int p = tree.get(i);
+            String[] stat = stats.get(p);
+
+            // utime, stime, cutime, cstime (clock ticks), rss (pages)
+            user += Long.parseLong(stat[11]) + Long.parseLong(stat[13]);
+            sys += Long.parseLong(stat[12]) + Long.parseLong(stat[14]);
+            rss += Long.parseLong(stat[21]);
+
+            long[] io = readIo(new File("/proc/" + p + "/io"));
+            read += io[0];
+            write += io[1];
+
+            if (children.containsKey(p))
+                tree.addAll(children.get(p));
+        }
+
+        // Descendants can exit before being waited for: keep the highest values
+        userTime = Math.max(userTime, user * 1000 / CLOCK_TICKS);
+        sysTime = Math.max(sysTime, sys * 1000 / CLOCK_TICKS);
+        peakRss = Math.max(peakRss, rss * PAGE_SIZE);
+        readBytes = Math.max(readBytes, read);
+        writeBytes = Math.max(writeBytes, write);
+    }
+
+    /**
+     * Read /proc/<pid>/stat
+     *
+     * @param file the stat file (only its first line is read)
+     * @return the fields following the command name (starting with the state), or null if the process has exited
+     */
+    private String[] readStat(File file) {
+
+        String line;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                line = reader.readLine();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        // The command name is between parentheses and may contain spaces
+        int end = line == null ? -1 : line.lastIndexOf(')');
+        if (end < 0)
+            return null;
+
+        String[] fields = line.substring(end + 1).trim().split(" ");
+
+        return fields.length > 21 ? fields : null;
+    }
+
+    /**
+     * Read the bytes read from and written to storage by a process
+     *
+     * @param file the /proc/<pid>/io file
+     * @return the read bytes and the written bytes (0 if not available)
+     */
+    private long[] readIo(File file) {
+
+        long[] io = new long[] {0, 0};
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("read_bytes:"))
+                        io[0] = Long.parseLong(line.substring(11).trim());
+                    else if (line.startsWith("write_bytes:"))
+                        io[1] = Long.parseLong(line.substring(12).trim());
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // Not readable (other user, or kernel without io accounting)
+        }
+
+        return io;
+    }
+
+    /**
+     * Get a system configuration value
+     *
+     * @param name the getconf variable
+     * @param defaultValue the value used if getconf fails
+     * @return the value
+     */
+    private static long getConf(String name, long defaultValue) {
+
+        try {
+            Process p = Runtime.getRuntime().exec(new String[] {"getconf", name});
+            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            String value = reader.readLine();
+            reader.close();
+            p.waitFor();
+
+            return Long.parseLong(value.trim());
+        } catch (Exception e) {
+            Hadoopizer.logger.warning("Cannot get " + name + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get the wall time of the process
+     *
+     * @return the wall time of the process (ms)
+     */
+    public long getWallTime() {
+
+        return wallTime;
+    }
+
+    /**
+     * Get the CPU time spent in user mode by the process tree
+     *
+     * @return the CPU time spent in user mode (ms)
+     */
+    public long getUserTime() {
+
+        return userTime;
+    }
+
+    /**
+     * Get the CPU time spent in kernel mode by the process tree
+     *
+     * @return the CPU time spent in kernel mode (ms)
+     */
+    public long getSysTime() {
+
+        return sysTime;
+    }
+
+    /**
+     * Get the highest resident memory of the process tree
+     *
+     * @return the highest resident memory of the process tree (bytes)
+     */
+    public long getPeakRss() {
+
+        return peakRss;
+    }
+
+    /**
+     * Get the number of bytes read from storage by the process tree
+     *
+     * @return the bytes read from storage by the process tree
+     */
+    public long getReadBytes() {
+
+        return readBytes;
+    }
+
+    /**
+     * Get the number of bytes written to storage by the process tree
+     *
+     * @return the bytes written to storage by the process tree
+     */
+    public long getWriteBytes() {
+
+        return writeBytes;
+    }
+}
@@ -0,0 +1,174 @@
+package org.genouest.hadoopizer.mapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.genouest.hadoopizer.Hadoopizer;
+
+/**
+ * Allocate the local files used by the commands (input chunks and outputs).
+ * Files are spread over the local dirs of the task (mapred.local.dir) with a weighted round-robin based on free space.
+ * Only the local dirs of the task attempt are used, so that the TaskTracker removes them with the attempt even if the task is killed.
+ * Small enough files can be placed in memory (tmpfs) within a configured budget: as nothing removes them if the task doesn't,
+ * they are also removed when the JVM exits.
+ */
+public class ScratchAllocator {
+
+    private ArrayList<File> dirs = new ArrayList<File>();
+    private long[] currentWeights;
+    private File shmDir;
+    private long shmBudget;
+    private long shmUsed = 0;
+    private HashMap<File, Long> shmFiles = new HashMap<File, Long>(); // Files in memory, with the size reserved for them
+    private Thread shmCleaner; // Removes the files in memory when the JVM exits before cleanup() (killed task)
+
+    /**
+     * Create a ScratchAllocator
+     *
+     * @param conf the job configuration
+     * @param name the task attempt id, used for the scratch directories
+     */
+    public ScratchAllocator(Configuration conf, String name) {
+
+        // The TaskTracker gives each attempt its own mapred.local.dir (taskTracker/<user>/jobcache/<job>/<attempt>), removed with the attempt
+        String[] localDirs = conf.getStrings("mapred.local.dir");
+        if (localDirs != null) {
+            for (String localDir : localDirs) {
+                if (!localDir.contains(name)) // Shared by the tasks, nothing would remove our files
+                    continue;
+
+                File dir = new File(localDir.trim(), "hadoopizer");
+                if ((dir.isDirectory() || dir.mkdirs()) && dir.canWrite())
+                    dirs.add(dir);
+                else
+                    Hadoopizer.logger.warning("Cannot use local dir for temporary files: " + dir.getAbsolutePath());
+            }
+        }
+
+        if (dirs.isEmpty()) {
+            // The work dir of the attempt (current dir) is removed with it too
+            File dir = new File(new File("").getAbsoluteFile(), "hadoopizer");
+            Hadoopizer.logger.warning("No local dir of the task attempt, writing temporary files in " + dir.getAbsolutePath());
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new RuntimeException("Cannot create directory for temporary files: " + dir.getAbsolutePath());
+            dirs.add(dir);
+        }
+        currentWeights = new long[dirs.size()];
+
+        shmBudget = conf.getLong("hadoopizer.scratch.shm.budget", 0);
+        if (shmBudget > 0) {
+            shmDir = new File(conf.get("hadoopizer.scratch.shm.dir", "/dev/shm"), "hadoopizer_" + name);
+            if (!shmDir.isDirectory() && !shmDir.mkdirs()) {
+                Hadoopizer.logger.warning("Cannot use memory for temporary files: " + shmDir.getAbsolutePath());
+                shmBudget = 0;
+            }
+            else {
+                final File dir = shmDir;
+                shmCleaner = new Thread("shm cleaner") {
+                    public void run() {
+                        try {
+                            FileUtil.fullyDelete(dir);
+                        } catch (IOException e) {
+                            // Nothing more can be done while exiting
+                        }
+                    }
+                };
+                Runtime.getRuntime().addShutdownHook(shmCleaner);
+            }
+        }
+    }
+
+    /**
+     * Create a new temporary file
+     *
+     * @param prefix the beginning of the file name
+     * @param suffix the end of the file name
+     * @param expectedSize the expected size of the file, in bytes (negative if unknown: the file will not be placed in memory)
+     * @return the new empty file
+     * @throws IOException
+     */
+    public synchronized File createTempFile(String prefix, String suffix, long expectedSize) throws IOException {
+
+        if (expectedSize >= 0 && shmUsed + expectedSize <= shmBudget) {
+            File file = Hadoopizer.createTempFile(shmDir, prefix, suffix);
+            shmUsed += expectedSize;
+            shmFiles.put(file, expectedSize);
+
+            return file;
+        }
+
+        return Hadoopizer.createTempFile(nextDir(expectedSize), prefix, suffix);
+    }
+
+    /**
+     * Choose a local dir with a smooth weighted round-robin: each dir is chosen proportionally to its free space
+     *
+     * @param expectedSize the expected size of the file (dirs with less free space are ignored)
+     * @return the chosen dir
+     */
+    private File nextDir(long expectedSize) {
+
+        long total = 0;
+        int chosen = -1;
+        for (int i = 0; i < dirs.size(); i++) {
+            long free = dirs.get(i).getUsableSpace();
+            if (free <= 0 || free < expectedSize)
+                continue;
+
+            currentWeights[i] += free;
+            total += free;
+            if (chosen < 0 || currentWeights[i] > currentWeights[chosen])
+                chosen = i;
+        }
+
+        if (chosen < 0) // Not enough space anywhere, the command will probably fail
+            return dirs.get(0);
+
+        currentWeights[chosen] -= total;
+
+        return dirs.get(chosen);
+    }
+
+    /**
+     * Delete a temporary file and release the memory it was using
+     *
+     * @param file the file to delete
+     */
+    public synchronized void delete(File file) {
+
+        if (file.exists() && !file.delete())
+            Hadoopizer.logger.warning("Cannot delete temporary file: " + file.getAbsolutePath());
+
+        Long size = shmFiles.remove(file);
+        if (size != null)
+            shmUsed -= size;
+    }
+
+    /**
+     * Remove all the scratch directories
+     *
+     * @throws IOException
+     */
+    public synchronized void cleanup() throws IOException {
+
+        for (File dir : dirs) {
+            FileUtil.fullyDelete(dir);
+        }
+
+        if (shmDir != null)
+            FileUtil.fullyDelete(shmDir);
+
+        if (shmCleaner != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shmCleaner);
+            } catch (IllegalStateException e) {
+                // Already exiting, the hook is running
+            }
+            shmCleaner = null;
+        }
+    }
+}
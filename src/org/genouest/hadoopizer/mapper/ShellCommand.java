@@ -0,0 +1,238 @@
+package org.genouest.hadoopizer.mapper;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.genouest.hadoopizer.Hadoopizer;
+
+/**
+ * A command line launched in background through a temporary shell script.
+ * Its stdout and stderr are drained concurrently while it is running.
+ */
+public class ShellCommand {
+
+    private String command;
+    private Configuration conf;
+    private File scriptFile;
+    private File statsFile;
+    private Process process;
+    private boolean drainStdout = true;
+    private StreamDrainer stdoutDrainer;
+    private StreamDrainer stderrDrainer;
+    private ProcessSampler sampler;
+
+    /**
+     * Create a ShellCommand
+     *
+     * @param command the command line, with all variables replaced
+     * @param conf the job configuration
+     */
+    public ShellCommand(String command, Configuration conf) {
+
+        this.command = command;
+        this.conf = conf;
+    }
+
+    /**
+     * Get the command line
+     *
+     * @return the command line
+     */
+    public String getCommand() {
+
+        return command;
+    }
+
+    /**
+     * Set the command line (before it is launched)
+     *
+     * @param command the command line, with all variables replaced
+     */
+    public void setCommand(String command) {
+
+        this.command = command;
+    }
+
+    /**
+     * Choose whether stdout is drained and logged (default), or left to the caller (see getStdout())
+     *
+     * @param drainStdout false if stdout is read by the caller
+     */
+    public void setDrainStdout(boolean drainStdout) {
+
+        this.drainStdout = drainStdout;
+    }
+
+    /**
+     * Launch the command line in background
+     *
+     * @param directory the directory where the temporary shell script is written
+     * @throws IOException
+     */
+    public void start(File directory) throws IOException {
+
+        Hadoopizer.logger.info("Running command: " + command);
+
+        long interval = conf.getLong("hadoopizer.shell.sample.interval", 1000);
+        boolean sample = interval > 0 && ProcessSampler.isSupported();
+        if (interval > 0 && !sample)
+            Hadoopizer.logger.warning("/proc is not available, the resources used by the command will not be sampled");
+
+        // java.lang.Process only works with 'simple' command lines (no redirections, ...)
+        // Write the command line to a temp shell script
+        String interpreter = conf.get("hadoopizer.shell.interpreter");
+        scriptFile = Hadoopizer.createTempFile(directory, "script", ".sh");
+        scriptFile.setExecutable(true);
+        FileWriter fw = new FileWriter(scriptFile);
+        BufferedWriter cmdWriter = new BufferedWriter(fw);
+        cmdWriter.write(interpreter);
+        cmdWriter.newLine();
+        if (sample && ProcessSampler.canTrapExit(interpreter)) {
+            // /proc/<pid> is gone once the script is waited for: let the shell save its totals when it exits
+            statsFile = new File(scriptFile.getAbsolutePath() + ".stats");
+            cmdWriter.write(ProcessSampler.getExitTrap(statsFile));
+            cmdWriter.newLine();
+        }
+        cmdWriter.write(command);
+        cmdWriter.flush();
+        cmdWriter.close();
+
+        // Running the command line
+        process = Runtime.getRuntime().exec(scriptFile.getAbsolutePath());
+
+        // Read stdout and stderr at the same time: the command would block on a full pipe if we were waiting for the other one
+        int maxLoggedLines = conf.getInt("hadoopizer.shell.log.lines", 1000);
+        int tailLines = conf.getInt("hadoopizer.shell.log.tail", 50);
+        int maxLineLength = conf.getInt("hadoopizer.shell.log.line.length", 1024);
+        if (drainStdout) {
+            stdoutDrainer = new StreamDrainer(process.getInputStream(), "[stdout] ", maxLoggedLines, tailLines, maxLineLength);
+            stdoutDrainer.start();
+        }
+        stderrDrainer = new StreamDrainer(process.getErrorStream(), "[stderr] ", maxLoggedLines, tailLines, maxLineLength);
+        stderrDrainer.start();
+
+        // Sample the resources used by the command and its children
+        if (sample) {
+            int pid = ProcessSampler.getPid(process);
+            if (pid > 0) {
+                sampler = new ProcessSampler(pid, interval);
+                sampler.start();
+            } else if (statsFile != null) {
+                Hadoopizer.logger.warning("The resources used by the command will only be read when it exits");
+                sampler = new ProcessSampler(pid, interval);
+            } else {
+                Hadoopizer.logger.warning("The resources used by the command will not be sampled");
+            }
+        }
+    }
+
+    /**
+     * Check if the command was launched
+     *
+     * @return true if the command was launched
+     */
+    public boolean isStarted() {
+
+        return process != null;
+    }
+
+    /**
+     * Check if the command has finished
+     *
+     * @return true if the command has finished
+     */
+    public boolean hasExited() {
+
+        try {
+            process.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the exit value of a finished command
+     *
+     * @return the exit value
+     */
+    public int exitValue() {
+
+        return process.exitValue();
+    }
+
+    /**
+     * Get a stream connected to the standard input of the command
+     *
+     * @return the stdin of the command
+     */
+    public OutputStream getStdin() {
+
+        return process.getOutputStream();
+    }
+
+    /**
+     * Get a stream connected to the standard output of the command (only if it is not drained)
+     *
+     * @return the stdout of the command
+     */
+    public InputStream getStdout() {
+
+        return process.getInputStream();
+    }
+
+    /**
+     * Wait for the command to finish, and for its stdout and stderr to be completely read
+     *
+     * @return the exit value of the command
+     * @throws InterruptedException
+     */
+    public int waitFor() throws InterruptedException {
+
+        int result = process.waitFor();
+        if (sampler != null)
+            sampler.finish(statsFile);
+        if (stdoutDrainer != null)
+            stdoutDrainer.join();
+        stderrDrainer.join();
+
+        if (!scriptFile.delete())
+            Hadoopizer.logger.warning("Cannot delete script file: " + scriptFile.getAbsolutePath());
+
+        return result;
+    }
+
+    /**
+     * Get the last lines written by the command on stderr
+     *
+     * @return the last lines of stderr
+     */
+    public String getStderrTail() {
+
+        return stderrDrainer.getTail();
+    }
+
+    /**
+     * Get the resources used by the finished command
+     *
+     * @return the sampler (null if the resources were not sampled)
+     */
+    public ProcessSampler getSampler() {
+
+        return sampler;
+    }
+
+    /**
+     * Kill the command if it is running
+     */
+    public void destroy() {
+
+        if (process != null)
+            process.destroy();
+    }
+}
@@ -0,0 +1,14 @@
+package org.genouest.hadoopizer.mapper;
+
+/**
+ * Hadoop counters describing the resources used by the commands
+ */
+public enum ShellCounter {
+    COMMANDS,
+    WALL_TIME_MS,
+    CPU_USER_MS,
+    CPU_SYS_MS,
+    PEAK_RSS_KB, // Highest resident memory of the commands of each task, summed over the tasks
+    READ_BYTES,
+    WRITE_BYTES
+}
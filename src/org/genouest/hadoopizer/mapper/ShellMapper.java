@@ -1,24 +1,37 @@
 package org.genouest.hadoopizer.mapper;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.RecordWriter;
 import org.genouest.hadoopizer.Hadoopizer;
 import org.genouest.hadoopizer.JobConfig;
 import org.genouest.hadoopizer.JobInputFile;
@@ -26,15 +39,54 @@ import org.genouest.hadoopizer.JobOutput;
 import org.genouest.hadoopizer.SplitableJobInput;
 import org.genouest.hadoopizer.input.HadoopizerInputFormat;
 import org.genouest.hadoopizer.input.HadoopizerRecordReader;
+import org.genouest.hadoopizer.input.PairedFileSplit;
+import org.genouest.hadoopizer.input.SplitLineReader;
+import org.genouest.hadoopizer.io.FileBackedText;
+import org.genouest.hadoopizer.io.SequenceRecordWritable;
 import org.genouest.hadoopizer.io.TaggedObjectWritable;
 import org.genouest.hadoopizer.io.ObjectWritableComparable;
 import org.genouest.hadoopizer.output.HadoopizerOutputFormat;
 
+/**
+ * Mapper writing the records of the split to local chunk files and launching the command on them.
+ * The split can be cut in several batches: while a batch is written, the previous one is processed by the command,
+ * and the outputs of the one before are parsed and emitted.
+ */
 public class ShellMapper extends Mapper<ObjectWritableComparable, ObjectWritable, ObjectWritableComparable, ObjectWritable> {
 
     private JobConfig config;
-    private ArrayList<RecordWriter<ObjectWritableComparable, ObjectWritable>> writers = new ArrayList<RecordWriter<ObjectWritableComparable,ObjectWritable>>();
+    private SplitableJobInput splitable;
     boolean joinData;
+    private boolean interleaved; // The records alternate between the mates of each pair (interleaved input, or paired files split together)
+    private int mate = 0; // Chunk file where the next record of an interleaved input is written
+    private boolean compactOutput; // The output records are shuffled as SequenceRecordWritable
+
+    private long batchRecords; // Maximum number of records in a batch (0 for no limit)
+    private long batchBytes; // Maximum number of bytes in a batch (0 for no limit)
+    private long chunkSize; // Expected size of an input chunk (negative if unknown)
+    private int nbBatches = 0;
+    private CommandBatch currentBatch; // The batch being written (null if no record was written since the last one was submitted)
+
+    private int processes; // Number of commands running concurrently
+    private int threads; // Number of cores available to each command
+    private LinkedBlockingQueue<Integer> freeSlots; // Process slots not used by a running command
+    private ScratchAllocator scratch; // Places the input chunks and output files on the local disks
+    private BatchCheckpoints checkpoints; // Outputs of the batches saved for the next attempts (null if disabled)
+    private ExecutorService runner; // Runs the commands
+    private ExecutorService parser; // Parses the command outputs
+    private ExecutorService streamParsers; // Parses the streamed outputs while the commands are running
+    private Semaphore batchSlots; // Limits the number of batches being written, run or parsed
+    private ArrayList<CommandBatch> activeBatches = new ArrayList<CommandBatch>();
+    private volatile Throwable failure;
+
+    // Resources used by the commands of the task
+    private int nbCommands = 0;
+    private long wallTime = 0;
+    private long userTime = 0;
+    private long sysTime = 0;
+    private long peakRss = 0;
+    private long readBytes = 0;
+    private long writeBytes = 0;
 
     @Override
     protected void setup(Context context) throws IOException, InterruptedException {
@@ -47,8 +99,11 @@ public class ShellMapper extends Mapper<ObjectWritableComparable, ObjectWritable
         config.load(xmlConfig);
 
         // Is the data joined?
-        SplitableJobInput splitable = (SplitableJobInput) config.getSplitableInput();
-        joinData = splitable.needJoin();
+        splitable = (SplitableJobInput) config.getSplitableInput();
+        boolean coSplit = context.getInputSplit() instanceof PairedFileSplit;
+        joinData = splitable.needJoin() && !coSplit;
+        interleaved = splitable.isInterleaved() || coSplit;
+        compactOutput = context.getMapOutputValueClass() == SequenceRecordWritable.class;
 
         // Download static files
         File workDir = new File(""); // The local work dir
@@ -69,139 +124,868 @@ public class ShellMapper extends Mapper<ObjectWritableComparable, ObjectWritable
             }
         }
 
-        // Write data chunk to a temporary input file
-        // This input file will be used in the command line launched in the cleanup step
-        int nb = 0;
-        for (JobInputFile file : splitable.getFiles()) {
-            
-            HadoopizerOutputFormat outf = file.getFileOutputFormat();
-            File inputFile = Hadoopizer.createTempFile(new File(System.getProperty("java.io.tmpdir")), "input_" + nb, "."+outf.getExtension());
-            
-            // We want to add the header from input file to each chunk file
-            Path headerFile = new Path(context.getConfiguration().get("hadoopizer.temp.input.header.file") + "_" + splitable.getId() + "_" + nb);
-            outf.setHeaderTempFile(headerFile);
-            
-            RecordWriter<ObjectWritableComparable, ObjectWritable> writer = (RecordWriter<ObjectWritableComparable, ObjectWritable>) outf.getRecordWriter(context, new Path("file:"+inputFile.getAbsolutePath()), null);
-            writers.add(writer);
-            
-            Hadoopizer.logger.info("Writing input chunk to '" + inputFile.getAbsolutePath() + "' with OutputFormat class '" + writer.getClass().getCanonicalName() + "'");
-    
-            file.setLocalPath(inputFile.getAbsolutePath());
-            nb++;
+        processes = Math.max(conf.getInt("hadoopizer.shell.processes", 1), 1);
+        threads = conf.getInt("hadoopizer.shell.threads", 0);
+        if (threads <= 0) // Share the cores of the node between the map slots and the commands
+            threads = Math.max(Runtime.getRuntime().availableProcessors() / conf.getInt("mapred.tasktracker.map.tasks.maximum", 2) / processes, 1);
+
+        freeSlots = new LinkedBlockingQueue<Integer>();
+        for (int i = 0; i < processes; i++) {
+            freeSlots.add(i);
         }
-    }
 
+        batchRecords = conf.getLong("hadoopizer.batch.records", 0);
+        batchBytes = conf.getLong("hadoopizer.batch.bytes", 0);
+        if (processes > 1 && batchRecords <= 0 && batchBytes <= 0) // Give a part of the split to each command
+            batchBytes = Math.max(context.getInputSplit().getLength() / processes, 1);
+
+        // Batches are cut on the written bytes, but the length of a compressed split says nothing about the size of its uncompressed chunk
+        if (batchBytes > 0)
+            chunkSize = batchBytes;
+        else if (isCompressed(context.getInputSplit(), conf))
+            chunkSize = -1; // Don't place it in memory, it could overrun the budget
+        else
+            chunkSize = context.getInputSplit().getLength();
+        scratch = new ScratchAllocator(conf, context.getTaskAttemptID().toString());
+
+        if (conf.getBoolean("hadoopizer.checkpoint", false)) {
+            boolean streamedOutput = false;
+            for (JobOutput out : config.getJobOutputs()) {
+                streamedOutput |= out.isStreamed();
+            }
+
+            if (streamedOutput)
+                Hadoopizer.logger.warning("Checkpoints are disabled: some outputs are streamed");
+            else
+                checkpoints = new BatchCheckpoints(conf, context.getInputSplit(), batchRecords + " records " + batchBytes + " bytes", context.getTaskAttemptID().toString());
+        }
+
+        if (processes > 1)
+            Hadoopizer.logger.info("Running " + processes + " commands concurrently, with " + threads + " threads each");
+        if (batchRecords > 0 || batchBytes > 0)
+            Hadoopizer.logger.info("Cutting the split in batches of " + (batchRecords > 0 ? batchRecords + " records " : "") + (batchBytes > 0 ? batchBytes + " bytes" : ""));
+
+        // One batch is written while the previous ones are processed by the commands, and the outputs of another one are parsed
+        runner = Executors.newFixedThreadPool(processes);
+        int parsedOutputs = 0;
+        for (JobOutput out : config.getJobOutputs()) {
+            if (!out.isStreamed())
+                parsedOutputs++;
+        }
+        parser = Executors.newFixedThreadPool(Math.max(parsedOutputs, 1)); // The outputs of a batch are parsed in parallel
+        streamParsers = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                // A parser blocked on a named pipe that will never be opened must not prevent the JVM from exiting
+                Thread t = new Thread(r, "stream-parser");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        batchSlots = new Semaphore(processes + 2);
+    }
 
     @Override
     protected void map(ObjectWritableComparable key, ObjectWritable value, Context context) throws IOException, InterruptedException {
 
-        // 'value' can be an ObjectWritable ready to write to temp file
-        // if the input data was joined (multiple input file), it contains a ObjectWritable[], each element corresponding to one of the input file
-        
+        checkFailure();
+
+        if (currentBatch == null)
+            currentBatch = openBatch(context);
+
+        try {
+            writeRecord(currentBatch, key, value);
+        } catch (IOException e) {
+            ShellCommand command = currentBatch.getCommand();
+            if (command != null && command.isStarted() && command.hasExited())
+                throw new IOException("Command exited (returned " + command.exitValue() + ") while the input chunk was streamed to it", e);
+
+            throw e;
+        } finally {
+            // Long sequences of joined data were deserialized to temp files, they are now in the chunk
+            FileBackedText.deleteReadFiles();
+        }
+
+        // Never separate the mates of an interleaved pair
+        boolean batchFull = (batchRecords > 0 && currentBatch.getNbRecords() >= batchRecords) || (batchBytes > 0 && currentBatch.getNbBytes() >= batchBytes);
+        if (batchFull && mate == 0) {
+            submitBatch(context, currentBatch);
+            currentBatch = null;
+        }
+    }
+
+    /**
+     * Write a record to the chunk writer(s) of a batch
+     *
+     * @param batch the batch to write to
+     * @param key the record key
+     * @param value the record value
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void writeRecord(CommandBatch batch, ObjectWritableComparable key, ObjectWritable value) throws IOException, InterruptedException {
+
+        // 'value' can be a SequenceRecordWritable ready to write to temp file, or an ObjectWritable containing a TaggedObjectWritable
+        // if the input data was joined (multiple input file), it contains an array, each element corresponding to one of the input file
+
         if (joinData) { // data was joined
-            ObjectWritable[] values = (ObjectWritable[]) value.get();
-            int nbWriters = writers.size();
-            
+            Object[] values = (Object[]) value.get();
+
             for (int i = 0; i < values.length; i++) {
-                
-                TaggedObjectWritable data = (TaggedObjectWritable) values[i].get();
-                int inputId = data.getInputId();
-                if (inputId >= nbWriters)
-                    throw new RuntimeException("Unexpected input data.");
-                
-                
-                writers.get(inputId).write(key, data.getData());
+
+                ObjectWritable data = (ObjectWritable) values[i];
+                batch.write(getInputId(data), key, getRecord(data));
             }
         }
+        else if (interleaved) { // the records alternate between the mates of each pair
+            batch.write(mate, key, getRecord(value));
+            mate = (mate + 1) % splitable.getFiles().size();
+        }
         else {
-            TaggedObjectWritable tw = (TaggedObjectWritable) value.get();
-            writers.get(0).write(key, (ObjectWritable) tw.getData());
+            batch.write(0, key, getRecord(value));
+        }
+
+        batch.recordWritten();
+    }
+
+    /**
+     * Check if a split reads compressed files (its length is then the compressed length)
+     *
+     * @param split the input split
+     * @param conf the job configuration
+     * @return true if one of the files of the split is compressed
+     * @throws IOException
+     */
+    private boolean isCompressed(InputSplit split, Configuration conf) throws IOException {
+
+        ArrayList<Path> paths = new ArrayList<Path>();
+        if (split instanceof FileSplit) {
+            paths.add(((FileSplit) split).getPath());
         }
+        else if (split instanceof PairedFileSplit) {
+            for (int i = 0; i < ((PairedFileSplit) split).getNbFiles(); i++) {
+                paths.add(((PairedFileSplit) split).getFileSplit(i).getPath());
+            }
+        }
+        else if (split instanceof CombineFileSplit) {
+            for (Path path : ((CombineFileSplit) split).getPaths()) {
+                paths.add(path);
+            }
+        }
+
+        CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+        for (Path path : paths) {
+            if (codecs.getCodec(path) != null || SplitLineReader.isBlockCompressed(path, conf))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Get the id of the input a value was read from
+     *
+     * @param value a {@link SequenceRecordWritable}, or an ObjectWritable containing a {@link TaggedObjectWritable}
+     * @return the input id
+     */
+    private int getInputId(ObjectWritable value) {
+
+        if (value instanceof SequenceRecordWritable)
+            return ((SequenceRecordWritable) value).getInputId();
+
+        return ((TaggedObjectWritable) value.get()).getInputId();
+    }
+
+    /**
+     * Get the record to write to an input chunk
+     *
+     * @param value a {@link SequenceRecordWritable}, or an ObjectWritable containing a {@link TaggedObjectWritable}
+     * @return the record itself, or the data of the TaggedObjectWritable
+     */
+    private ObjectWritable getRecord(ObjectWritable value) {
+
+        if (value instanceof SequenceRecordWritable)
+            return value;
+
+        return ((TaggedObjectWritable) value.get()).getData();
     }
 
     @Override
     protected void cleanup(Context context) throws IOException, InterruptedException {
 
-        for (RecordWriter<ObjectWritableComparable, ObjectWritable> writer : writers) {
-            writer.close(context);
+        // Launch the command even if the split is empty
+        if (currentBatch == null && nbBatches == 0)
+            currentBatch = openBatch(context);
+
+        if (currentBatch != null)
+            submitBatch(context, currentBatch);
+
+        try {
+            // Wait for all the commands, then for all the parsing
+            context.setStatus("Running command");
+            runner.shutdown();
+            while (!runner.awaitTermination(5, TimeUnit.SECONDS)) {
+                context.progress();
+                checkFailure();
+            }
+
+            streamParsers.shutdown();
+            parser.shutdown();
+            while (!parser.awaitTermination(5, TimeUnit.SECONDS)) {
+                context.progress();
+                checkFailure();
+            }
+
+            checkFailure();
+
+            // All the records were emitted
+            if (checkpoints != null)
+                checkpoints.clear();
+
+            logUsage(context);
+        } finally {
+            shutdown();
+        }
+
+        context.setStatus("Finished");
+    }
+
+    @Override
+    public void run(Context context) throws IOException, InterruptedException {
+
+        try {
+            super.run(context);
+        } finally {
+            // Mapper.run() doesn't call cleanup() when setup() or map() fails
+            shutdown();
+        }
+    }
+
+    /**
+     * Kill the commands still running, stop the runner and the parsers, and remove the scratch directories
+     * (the chunks in memory would otherwise stay there until the node reboots)
+     *
+     * @throws IOException
+     */
+    private void shutdown() throws IOException {
+
+        synchronized (activeBatches) {
+            for (CommandBatch batch : activeBatches) {
+                if (batch.getCommand() != null)
+                    batch.getCommand().destroy();
+            }
+        }
+
+        if (runner != null)
+            runner.shutdownNow();
+        if (parser != null)
+            parser.shutdownNow();
+        if (streamParsers != null)
+            streamParsers.shutdownNow();
+
+        if (scratch != null)
+            scratch.cleanup();
+    }
+
+    /**
+     * Create the files of a new batch. If the input is streamed, the command is launched immediately.
+     *
+     * @param context the task context
+     * @return the new batch
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private CommandBatch openBatch(Context context) throws IOException, InterruptedException {
+
+        // Don't fill the local disk if the commands are slower than the split reading
+        while (!batchSlots.tryAcquire(1, TimeUnit.SECONDS)) {
+            context.progress();
+            checkFailure();
+        }
+
+        Configuration conf = context.getConfiguration();
+        File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+        CommandBatch batch = new CommandBatch(nbBatches++, scratch);
+        synchronized (activeBatches) {
+            activeBatches.add(batch);
+        }
+
+        if (checkpoints != null && checkpoints.isDone(batch.getIndex())) {
+            // The outputs were saved by a previous attempt, the records only need to be counted to find the end of the batch
+            Hadoopizer.logger.info("Batch " + batch.getIndex() + " was processed by a previous attempt, skipping it");
+            batch.setReplay(true);
+
+            int nb = 0;
+            for (JobInputFile file : splitable.getFiles()) {
+                Path headerFile = HadoopizerInputFormat.getInputHeaderFile(conf, splitable.getId(), nb);
+                batch.addWriter(context, file.getFileOutputFormat(), new IOUtils.NullOutputStream(), headerFile);
+                nb++;
+            }
+
+            return batch;
+        }
+
+        // Write data chunk to a temporary input file (or a named pipe)
+        int nb = 0;
+        ArrayList<File> chunkFiles = new ArrayList<File>();
+        for (JobInputFile file : splitable.getFiles()) {
+
+            String extension = "." + file.getFileOutputFormat().getExtension();
+            File inputFile = null;
+            if (!splitable.isStreamed()) {
+                inputFile = scratch.createTempFile("input_" + nb, extension, chunkSize);
+                file.setLocalPath(inputFile.getAbsolutePath());
+            }
+            else if (splitable.getStreamMode().equals(SplitableJobInput.STREAM_FIFO)) {
+                inputFile = Hadoopizer.createTempFifo(tmpDir, "input_" + nb, extension);
+                file.setLocalPath(inputFile.getAbsolutePath());
+            }
+            else {
+                file.setLocalPath("/dev/stdin");
+            }
+
+            if (inputFile != null)
+                batch.addInputFile(inputFile);
+            chunkFiles.add(inputFile);
+            nb++;
         }
-        
-        context.setStatus("Running command");
 
         // Preparing output files
-        HashSet<JobOutput> outs = config.getJobOutputs();
-        for (JobOutput out : outs) {
-            File outputFile = Hadoopizer.createTempFile(new File(System.getProperty("java.io.tmpdir")), "output_" + out.getId(), ".tmp");
+        for (JobOutput out : config.getJobOutputs()) {
+            File outputFile;
+            if (out.isStreamed()) {
+                outputFile = Hadoopizer.createTempFifo(tmpDir, "output_" + out.getId(), ".tmp");
+                Hadoopizer.logger.info("Streaming results through named pipe: " + outputFile);
+            }
+            else {
+                outputFile = scratch.createTempFile("output_" + out.getId(), ".tmp", -1);
+                Hadoopizer.logger.info("Saving temporary results in: " + outputFile);
+            }
+
             out.setLocalPath(outputFile.getAbsolutePath());
-            Hadoopizer.logger.info("Saving temporary results in: " + outputFile);
+            batch.addOutputFile(out.getId(), outputFile);
         }
 
         // Preparing the command line
-        String command = config.getFinalCommand();
-        Hadoopizer.logger.info("Running command: " + command);
-        
-        // java.lang.Process only works with 'simple' command lines (no redirections, ...)
-        // Write the command line to a temp shell script
-        File cmdFile = Hadoopizer.createTempFile(new File(System.getProperty("java.io.tmpdir")), "script", ".sh");
-        cmdFile.setExecutable(true);
-        FileWriter fw = new FileWriter(cmdFile);
-        BufferedWriter cmdWriter = new BufferedWriter(fw);
-        cmdWriter.write(context.getConfiguration().get("hadoopizer.shell.interpreter"));
-        cmdWriter.newLine();
-        cmdWriter.write(command);
-        cmdWriter.flush();
-        cmdWriter.close();
-
-        // Running the command line
-        Process p = Runtime.getRuntime().exec(cmdFile.getAbsolutePath());
-        InputStream stdout = p.getInputStream();
-        InputStream stderr = p.getErrorStream();
-        
-        // print stdout
-        BufferedReader outReader = new BufferedReader (new InputStreamReader(stdout));
-        String outLine;
-        while ((outLine = outReader.readLine ()) != null) {
-            Hadoopizer.logger.info("[stdout] " + outLine);
-        }
-        outReader.close();
-
-        // print stderr
-        outReader = new BufferedReader (new InputStreamReader(stderr));
-        while ((outLine = outReader.readLine ()) != null) {
-            Hadoopizer.logger.info("[stderr] " + outLine);
-        }
-        outReader.close();
+        String command = JobConfig.replaceVariable(config.getFinalCommand(), JobConfig.THREADS_VARIABLE, Integer.toString(threads));
+        batch.setCommand(new ShellCommand(command, conf));
+
+        if (splitable.isStreamed()) {
+            // The command consumes the records while they are read from the split
+            context.setStatus("Running command");
+            startCommand(context, batch);
+        }
+
+        nb = 0;
+        for (JobInputFile file : splitable.getFiles()) {
+
+            HadoopizerOutputFormat outf = file.getFileOutputFormat();
+            File inputFile = chunkFiles.get(nb);
+
+            OutputStream out;
+            if (!splitable.isStreamed()) {
+                out = new FileOutputStream(inputFile);
+                Hadoopizer.logger.info("Writing input chunk to '" + inputFile.getAbsolutePath() + "' with OutputFormat class '" + outf.getClass().getCanonicalName() + "'");
+            }
+            else if (inputFile != null) {
+                out = openFifo(inputFile, batch.getCommand());
+                Hadoopizer.logger.info("Streaming input chunk to named pipe '" + inputFile.getAbsolutePath() + "'");
+            }
+            else {
+                out = batch.getCommand().getStdin();
+                Hadoopizer.logger.info("Streaming input chunk to the command standard input");
+            }
+
+            // We want to add the header from input file to each chunk file
+            Path headerFile = HadoopizerInputFormat.getInputHeaderFile(conf, splitable.getId(), nb);
+            batch.addWriter(context, outf, out, headerFile);
+            nb++;
+        }
+
+        return batch;
+    }
+
+    /**
+     * Open a named pipe for writing. Opening blocks until the command opens the other end, so make sure it is still alive while waiting.
+     *
+     * @param fifo the named pipe to open
+     * @param command the command reading the named pipe
+     * @return an OutputStream writing to the named pipe
+     * @throws IOException if the command exited before opening the named pipe
+     * @throws InterruptedException
+     */
+    private OutputStream openFifo(final File fifo, ShellCommand command) throws IOException, InterruptedException {
+
+        FutureTask<OutputStream> opener = new FutureTask<OutputStream>(new Callable<OutputStream>() {
+            public OutputStream call() throws IOException {
+                return new FileOutputStream(fifo);
+            }
+        });
+
+        Thread openerThread = new Thread(opener, "fifo-opener");
+        openerThread.setDaemon(true);
+        openerThread.start();
+
+        while (true) {
+            try {
+                return opener.get(1, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                if (command.hasExited()) {
+                    // Open the other end ourselves to unblock the opener thread
+                    new FileInputStream(fifo).close();
+                    try {
+                        opener.get().close();
+                    } catch (ExecutionException e1) {
+                        // Nothing to close
+                    }
+
+                    throw new IOException("Command exited (returned " + command.exitValue() + ") before opening the named pipe " + fifo.getAbsolutePath());
+                }
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to open named pipe " + fifo.getAbsolutePath() + ": " + e.getCause().getMessage());
+            }
+        }
+    }
+
+    /**
+     * Close the input chunk of a batch and queue it for execution
+     *
+     * @param context the task context
+     * @param batch the batch to submit
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void submitBatch(final Context context, final CommandBatch batch) throws IOException, InterruptedException {
+
+        // Closing the writers sends EOF to the command if it is reading a stream
+        batch.closeWriters(context);
+
+        Hadoopizer.logger.info("Batch " + batch.getIndex() + " ready (" + batch.getNbRecords() + " records)");
+
+        if (batch.isReplay()) {
+            queueParsing(context, batch);
+            return;
+        }
+
+        runner.execute(new Runnable() {
+            public void run() {
+                try {
+                    runBatch(context, batch);
+                } catch (Throwable t) {
+                    fail(t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Launch the command of a batch (unless it was already started) and wait for its completion, then queue its outputs for parsing
+     *
+     * @param context the task context
+     * @param batch the batch to run
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void runBatch(final Context context, final CommandBatch batch) throws IOException, InterruptedException {
+
+        boolean executed = false;
+        try {
+            executeBatch(context, batch);
+            executed = true;
+        } finally {
+            waitStreamParsers(batch, executed);
+        }
+
+        batch.deleteInputFiles();
+
+        if (checkpoints != null) {
+            ArrayList<String> outputIds = new ArrayList<String>();
+            for (JobOutput out : config.getJobOutputs()) {
+                outputIds.add(out.getId());
+            }
+            checkpoints.save(batch, outputIds);
+        }
+
+        queueParsing(context, batch);
+    }
+
+    /**
+     * Queue the parsing of the outputs of a batch
+     *
+     * @param context the task context
+     * @param batch the batch whose outputs are ready
+     */
+    private void queueParsing(final Context context, final CommandBatch batch) {
+
+        // Each output is parsed by a different thread
+        ArrayList<JobOutput> outputs = new ArrayList<JobOutput>();
+        for (JobOutput out : config.getJobOutputs()) {
+            if (!out.isStreamed()) // Streamed outputs were parsed while the command was running
+                outputs.add(out);
+        }
+
+        if (outputs.isEmpty()) {
+            finishBatch(batch);
+            return;
+        }
+
+        final AtomicInteger remainingOutputs = new AtomicInteger(outputs.size());
+        for (final JobOutput out : outputs) {
+            parser.execute(new Runnable() {
+                public void run() {
+                    try {
+                        parseOutput(context, batch, out);
+
+                        if (remainingOutputs.decrementAndGet() == 0)
+                            finishBatch(batch);
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Launch the command of a batch in a free process slot
+     *
+     * @param context the task context
+     * @param batch the batch to launch
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void startCommand(Context context, CommandBatch batch) throws IOException, InterruptedException {
+
+        int slot = acquireSlot(context);
+        batch.setSlot(slot);
+
+        ShellCommand command = batch.getCommand();
+        command.setCommand(JobConfig.replaceVariable(command.getCommand(), JobConfig.SLOT_VARIABLE, Integer.toString(slot)));
+        command.start(new File(System.getProperty("java.io.tmpdir")));
+
+        startStreamParsers(context, batch);
+    }
+
+    /**
+     * Wait for a free process slot
+     *
+     * @param context the task context
+     * @return the slot (from 0 to the number of concurrent commands - 1)
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected int acquireSlot(Context context) throws IOException, InterruptedException {
+
+        Integer slot;
+        while ((slot = freeSlots.poll(1, TimeUnit.SECONDS)) == null) {
+            context.progress();
+            checkFailure();
+        }
+
+        return slot;
+    }
+
+    /**
+     * Make a process slot available for another command
+     *
+     * @param slot the slot
+     */
+    protected void releaseSlot(int slot) {
+
+        freeSlots.add(slot);
+    }
+
+    /**
+     * Start parsing the streamed outputs of a batch, while its command is running
+     *
+     * @param context the task context
+     * @param batch the batch whose command was just launched
+     */
+    protected void startStreamParsers(final Context context, final CommandBatch batch) {
+
+        for (final JobOutput out : config.getJobOutputs()) {
+            if (!out.isStreamed())
+                continue;
+
+            Future<?> streamParser = streamParsers.submit(new Callable<Void>() {
+                public Void call() throws IOException, InterruptedException {
+                    // Opening the named pipe blocks until the command opens it
+                    parseOutput(context, out, new Path(batch.getOutputFile(out.getId()).toURI()), Long.MAX_VALUE);
+                    return null;
+                }
+            });
+
+            batch.addStreamParser(out.getId(), streamParser);
+        }
+    }
+
+    /**
+     * Wait for the parsing of the streamed outputs of a batch whose command has exited
+     *
+     * @param batch the batch
+     * @param executed true if the command succeeded, false if the parsing must only be stopped
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void waitStreamParsers(CommandBatch batch, boolean executed) throws IOException, InterruptedException {
+
+        for (JobOutput out : config.getJobOutputs()) {
+            Future<?> streamParser = batch.getStreamParser(out.getId());
+            if (streamParser == null)
+                continue;
+
+            // The command may have exited without opening the named pipe: open it ourselves (without blocking) to send EOF to the parser
+            File fifo = batch.getOutputFile(out.getId());
+            while (!streamParser.isDone() && fifo.exists()) { // The named pipe is removed on failure
+                new RandomAccessFile(fifo, "rw").close();
+
+                try {
+                    streamParser.get(1, TimeUnit.SECONDS);
+                } catch (TimeoutException e) {
+                    // Still parsing
+                } catch (ExecutionException e) {
+                    // Checked below
+                }
+            }
+
+            if (executed && streamParser.isDone()) {
+                try {
+                    streamParser.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+
+            batch.deleteOutputFile(out.getId());
+        }
+    }
+
+    /**
+     * Get the job configuration
+     *
+     * @return the job configuration
+     */
+    protected JobConfig getConfig() {
+
+        return config;
+    }
+
+    /**
+     * Get the number of cores available to each command
+     *
+     * @return the value of ${threads}
+     */
+    protected int getThreads() {
+
+        return threads;
+    }
+
+    /**
+     * Execute the command of a batch and wait for its completion
+     *
+     * @param context the task context
+     * @param batch the batch to execute
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected void executeBatch(Context context, CommandBatch batch) throws IOException, InterruptedException {
+
+        ShellCommand command = batch.getCommand();
+        if (!command.isStarted())
+            startCommand(context, batch);
 
         // Waiting for the command line completion
-        int result = p.waitFor();
+        int result;
+        try {
+            result = command.waitFor();
+        } finally {
+            releaseSlot(batch.getSlot());
+        }
+
+        if (command.getSampler() != null)
+            recordUsage(context, command.getSampler());
+
         if (result != 0) {
-            throw new RuntimeException("Execution of command failed (returned " + result + ")");
-        }
-
-        // Process finished, get the output files content and add it to context
-        for (JobOutput out : outs) {
-            context.setStatus("Parsing command output with " + out.getReducerId() + " parser for " + out.getId() + " output");
-        
-            HadoopizerInputFormat inf = out.getFileInputFormat();
-            
-            // We want to add the header in the final output file
-            Path headerFile = new Path(context.getConfiguration().get("hadoopizer.temp.output.header.file") + "_" + out.getId());
-            inf.setHeaderTempFile(headerFile);
-            
-            File outFile = new File(out.getLocalPath());
-            InputSplit split = new FileSplit(new Path(outFile.toURI()), 0, outFile.length(), null);
-            HadoopizerRecordReader reader = (HadoopizerRecordReader) inf.createRecordReader(split, context);
-            reader.initialize(split, context);
-            while (reader.nextKeyValue()) {
-                context.write(reader.getCurrentKey(out.getId()), ((TaggedObjectWritable) reader.getCurrentValue().get()).getData());
-            }
-            reader.close();
-    
-            // Remove temporary output files
-            if (!outFile.delete())
-    			Hadoopizer.logger.warning("Cannot delete output file: " + outFile.getAbsolutePath());
-        }
-        
-        context.setStatus("Finished");
+            throw new RuntimeException("Execution of command failed (returned " + result + "), last lines of stderr:\n" + command.getStderrTail());
+        }
+    }
+
+    /**
+     * Publish the resources used by a command as counters
+     *
+     * @param context the task context
+     * @param sampler the resources sampled while the command was running
+     */
+    protected void recordUsage(Context context, ProcessSampler sampler) {
+
+        synchronized (context) {
+            context.getCounter(ShellCounter.COMMANDS).increment(1);
+            context.getCounter(ShellCounter.WALL_TIME_MS).increment(sampler.getWallTime());
+            context.getCounter(ShellCounter.CPU_USER_MS).increment(sampler.getUserTime());
+            context.getCounter(ShellCounter.CPU_SYS_MS).increment(sampler.getSysTime());
+            context.getCounter(ShellCounter.READ_BYTES).increment(sampler.getReadBytes());
+            context.getCounter(ShellCounter.WRITE_BYTES).increment(sampler.getWriteBytes());
+
+            nbCommands++;
+            wallTime += sampler.getWallTime();
+            userTime += sampler.getUserTime();
+            sysTime += sampler.getSysTime();
+            peakRss = Math.max(peakRss, sampler.getPeakRss());
+            readBytes += sampler.getReadBytes();
+            writeBytes += sampler.getWriteBytes();
+        }
+    }
+
+    /**
+     * Log a summary of the resources used by the commands of the task
+     *
+     * @param context the task context
+     */
+    private void logUsage(Context context) {
+
+        if (nbCommands == 0)
+            return;
+
+        context.getCounter(ShellCounter.PEAK_RSS_KB).increment(peakRss / 1024);
+
+        Hadoopizer.logger.info("Resources used by the " + nbCommands + " command(s) of the task: wall time " + (wallTime / 1000.0) + "s"
+                + ", cpu user " + (userTime / 1000.0) + "s, cpu sys " + (sysTime / 1000.0) + "s"
+                + ", peak rss " + (peakRss / (1024 * 1024)) + "MB"
+                + ", read " + (readBytes / (1024 * 1024)) + "MB, written " + (writeBytes / (1024 * 1024)) + "MB");
+    }
+
+    /**
+     * Read an output file of a finished batch and add its content to context
+     *
+     * @param context the task context
+     * @param batch the batch to parse
+     * @param out the output to parse
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void parseOutput(Context context, CommandBatch batch, JobOutput out) throws IOException, InterruptedException {
+
+        if (batch.isReplay()) {
+            // Read the output saved by a previous attempt
+            Path savedOutput = checkpoints.getOutputPath(batch.getIndex(), out.getId());
+            FileSystem fs = savedOutput.getFileSystem(context.getConfiguration());
+            parseOutput(context, out, savedOutput, fs.getFileStatus(savedOutput).getLen());
+            return;
+        }
+
+        File outFile = batch.getOutputFile(out.getId());
+        parseOutput(context, out, new Path(outFile.toURI()), outFile.length());
+
+        // Remove temporary output files
+        batch.deleteOutputFile(out.getId());
+    }
+
+    /**
+     * Read an output file (or named pipe) produced by a command and add its content to context
+     *
+     * @param context the task context
+     * @param out the output
+     * @param outFile the file to read
+     * @param length the number of bytes to read (Long.MAX_VALUE to read until EOF)
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void parseOutput(Context context, JobOutput out, Path outFile, long length) throws IOException, InterruptedException {
+
+        context.setStatus("Parsing command output with " + out.getReducerId() + " parser for " + out.getId() + " output");
+
+        HadoopizerInputFormat inf = out.getFileInputFormat();
+
+        // We want to add the header in the final output file
+        Path headerFile = new Path(context.getConfiguration().get("hadoopizer.temp.output.header.file") + "_" + out.getId());
+        inf.setHeaderTempFile(headerFile);
+
+        InputSplit split = new FileSplit(outFile, 0, length, null);
+        HadoopizerRecordReader reader = (HadoopizerRecordReader) inf.createRecordReader(split, context);
+        reader.initialize(split, context);
+        while (reader.nextKeyValue()) {
+            ObjectWritable value = reader.getCurrentValue();
+            if (!(value instanceof SequenceRecordWritable))
+                value = getRecord(value);
+            else if (!compactOutput) // Other outputs are not SequenceRecordWritable: it must be wrapped
+                value = new ObjectWritable(value);
+
+            emit(context, reader.getCurrentKey(out.getId()), value);
+        }
+        reader.close();
+    }
+
+    /**
+     * Add a record to context. Outputs can be parsed by several threads at the same time.
+     *
+     * @param context the task context
+     * @param key the record key
+     * @param value the record value
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void emit(Context context, ObjectWritableComparable key, ObjectWritable value) throws IOException, InterruptedException {
+
+        synchronized (context) {
+            context.write(key, value);
+        }
+    }
+
+    /**
+     * Release the resources of a batch which has been completely processed
+     *
+     * @param batch the finished batch
+     */
+    private void finishBatch(CommandBatch batch) {
+
+        synchronized (activeBatches) {
+            activeBatches.remove(batch);
+        }
+
+        batchSlots.release();
+    }
+
+    /**
+     * Record the failure of a batch and kill the running commands
+     *
+     * @param t the cause of the failure
+     */
+    private void fail(Throwable t) {
+
+        Hadoopizer.logger.severe("Batch processing failed: " + t.getMessage());
+
+        if (failure == null)
+            failure = t;
+
+        synchronized (activeBatches) {
+            for (CommandBatch batch : activeBatches) {
+                if (batch.getCommand() != null)
+                    batch.getCommand().destroy();
+                batch.deleteFiles();
+            }
+        }
+
+        // Unblock the mapper if it is waiting for a free slot
+        batchSlots.release(activeBatches.size() + 1);
+    }
+
+    /**
+     * Throw an exception if a batch failed in background
+     *
+     * @throws IOException
+     */
+    private void checkFailure() throws IOException {
+
+        if (failure == null)
+            return;
+
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+
+        throw new RuntimeException(failure);
     }
 }
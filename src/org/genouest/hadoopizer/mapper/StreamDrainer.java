@@ -0,0 +1,133 @@
+package org.genouest.hadoopizer.mapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.genouest.hadoopizer.Hadoopizer;
+
+/**
+ * Thread reading a command output stream (stdout or stderr) until EOF, so that the command never blocks on a full pipe.
+ * Only the first lines are logged, and the last ones are kept in a bounded ring buffer for diagnostics.
+ */
+public class StreamDrainer extends Thread {
+
+    private InputStream in;
+    private String prefix;
+    private int maxLoggedLines;
+    private int maxLineLength;
+
+    private String[] tail; // Ring buffer containing the last lines
+    private int tailPos = 0;
+    private long nbLines = 0;
+
+    /**
+     * Create a StreamDrainer
+     *
+     * @param in the stream to read
+     * @param prefix prefix added to each logged line
+     * @param maxLoggedLines number of lines to log, the following ones are only kept in the tail
+     * @param tailLines number of lines kept in the tail
+     * @param maxLineLength lines longer than this are truncated
+     */
+    public StreamDrainer(InputStream in, String prefix, int maxLoggedLines, int tailLines, int maxLineLength) {
+
+        super("drainer " + prefix);
+
+        this.in = in;
+        this.prefix = prefix;
+        this.maxLoggedLines = maxLoggedLines;
+        this.maxLineLength = maxLineLength;
+        this.tail = new String[Math.max(tailLines, 1)];
+
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+
+        byte[] buffer = new byte[8192];
+        byte[] line = new byte[maxLineLength];
+        int lineLength = 0;
+        boolean truncated = false;
+        int read;
+
+        try {
+            while ((read = in.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        addLine(new String(line, 0, lineLength), truncated);
+                        lineLength = 0;
+                        truncated = false;
+                    }
+                    else if (lineLength < line.length) {
+                        line[lineLength++] = buffer[i];
+                    }
+                    else {
+                        truncated = true;
+                    }
+                }
+            }
+
+            if (lineLength > 0)
+                addLine(new String(line, 0, lineLength), truncated);
+
+            in.close();
+        } catch (IOException e) {
+            Hadoopizer.logger.warning("Failed reading command output: " + e.getMessage());
+        }
+
+        if (nbLines > maxLoggedLines)
+            Hadoopizer.logger.info(prefix + (nbLines - maxLoggedLines) + " lines not logged, last lines were:\n" + getTail());
+    }
+
+    /**
+     * Log a line (if the limit is not reached) and keep it in the tail
+     *
+     * @param text the line content
+     * @param truncated true if the line was too long
+     */
+    private void addLine(String text, boolean truncated) {
+
+        if (truncated)
+            text += " [truncated]";
+
+        if (nbLines < maxLoggedLines)
+            Hadoopizer.logger.info(prefix + text);
+
+        synchronized (tail) {
+            tail[tailPos] = text;
+            tailPos = (tailPos + 1) % tail.length;
+            nbLines++;
+        }
+    }
+
+    /**
+     * Get the last lines read from the stream
+     *
+     * @return the last lines, separated by line breaks
+     */
+    public String getTail() {
+
+        StringBuilder sb = new StringBuilder();
+
+        synchronized (tail) {
+            for (int i = 0; i < tail.length; i++) {
+                String text = tail[(tailPos + i) % tail.length];
+                if (text != null)
+                    sb.append(text).append("\n");
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Get the number of lines read from the stream
+     *
+     * @return the number of lines
+     */
+    public long getNbLines() {
+
+        return nbLines;
+    }
+}
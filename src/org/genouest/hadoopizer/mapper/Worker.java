@@ -0,0 +1,143 @@
+package org.genouest.hadoopizer.mapper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+
+import org.apache.hadoop.conf.Configuration;
+import org.genouest.hadoopizer.Hadoopizer;
+
+/**
+ * A long-lived process to which command lines are sent, one at a time.
+ * The worker reads each request on its stdin (the command line on a single line), processes it, and writes
+ * a line "HADOOPIZER_DONE <status>" on its stdout when finished. The other lines written on stdout are logged.
+ */
+public class Worker {
+
+    public static final String DONE_MARKER = "HADOOPIZER_DONE";
+
+    private ShellCommand command;
+    private BufferedWriter requests;
+    private BufferedReader replies;
+
+    /**
+     * Create a Worker
+     *
+     * @param command the command line launching the worker, with all variables replaced
+     * @param conf the job configuration
+     */
+    public Worker(String command, Configuration conf) {
+
+        this.command = new ShellCommand(command, conf);
+        this.command.setDrainStdout(false); // stdout is used by the protocol
+    }
+
+    /**
+     * Get the command line launching the worker
+     *
+     * @return the command line
+     */
+    public String getCommand() {
+
+        return command.getCommand();
+    }
+
+    /**
+     * Launch the worker in background
+     *
+     * @param directory the directory where the temporary shell script is written
+     * @throws IOException
+     */
+    public void start(File directory) throws IOException {
+
+        Hadoopizer.logger.info("Starting worker");
+        command.start(directory);
+
+        requests = new BufferedWriter(new OutputStreamWriter(command.getStdin()));
+        replies = new BufferedReader(new InputStreamReader(command.getStdout()));
+    }
+
+    /**
+     * Check if the worker is running and able to process requests
+     *
+     * @return true if the worker is running
+     */
+    public boolean isAlive() {
+
+        return command.isStarted() && !command.hasExited();
+    }
+
+    /**
+     * Send a command line to the worker and wait for it to be processed
+     *
+     * @param request the command line, with all variables replaced
+     * @return the status returned by the worker
+     * @throws IOException if the worker exited before processing the request
+     */
+    public synchronized int execute(String request) throws IOException {
+
+        Hadoopizer.logger.info("Sending command to worker: " + request);
+
+        try {
+            // Line breaks would be interpreted as several requests
+            requests.write(request.replace('\n', ' ').replace('\r', ' ').trim());
+            requests.newLine();
+            requests.flush();
+        } catch (IOException e) {
+            throw new IOException("Worker exited before receiving the command, last lines of stderr:\n" + command.getStderrTail());
+        }
+
+        String line;
+        while ((line = replies.readLine()) != null) {
+            if (line.startsWith(DONE_MARKER)) {
+                try {
+                    return Integer.parseInt(line.substring(DONE_MARKER.length()).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Unexpected reply from worker: " + line);
+                }
+            }
+
+            Hadoopizer.logger.info("[worker] " + line);
+        }
+
+        throw new IOException("Worker exited while processing the command, last lines of stderr:\n" + command.getStderrTail());
+    }
+
+    /**
+     * Get the last lines written by the worker on stderr
+     *
+     * @return the last lines of stderr
+     */
+    public String getStderrTail() {
+
+        return command.getStderrTail();
+    }
+
+    /**
+     * Stop the worker: close its stdin (end of requests) and kill it
+     */
+    public void stop() {
+
+        if (!command.isStarted())
+            return;
+
+        Hadoopizer.logger.info("Stopping worker");
+
+        try {
+            requests.close();
+        } catch (IOException e) {
+            // Already exited
+        }
+
+        command.destroy();
+
+        try {
+            command.waitFor();
+        } catch (InterruptedException e) {
+            // Leave it
+        }
+    }
+}
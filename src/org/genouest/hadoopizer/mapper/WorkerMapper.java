@@ -0,0 +1,126 @@
+package org.genouest.hadoopizer.mapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.genouest.hadoopizer.Hadoopizer;
+import org.genouest.hadoopizer.JobConfig;
+
+/**
+ * Mapper sending the command lines to persistent workers instead of launching a new process for each batch.
+ * Workers are kept alive in the task JVM (one per process slot), so that tools with an expensive startup
+ * (index loading, ...) only pay it once when the JVM is reused for several map tasks.
+ */
+public class WorkerMapper extends ShellMapper {
+
+    private static final HashMap<Integer, Worker> workers = new HashMap<Integer, Worker>();
+    private static boolean shutdownHookAdded = false;
+
+    @Override
+    protected void executeBatch(Context context, CommandBatch batch) throws IOException, InterruptedException {
+
+        int slot = acquireSlot(context);
+        batch.setSlot(slot);
+
+        try {
+            Worker worker = getWorker(context, slot);
+
+            startStreamParsers(context, batch);
+
+            String command = JobConfig.replaceVariable(batch.getCommand().getCommand(), JobConfig.SLOT_VARIABLE, Integer.toString(slot));
+            int result;
+            try {
+                result = worker.execute(command);
+            } catch (IOException e) {
+                // The worker is not usable anymore
+                removeWorker(slot);
+                throw e;
+            }
+
+            if (result != 0) {
+                throw new RuntimeException("Execution of command by worker failed (returned " + result + "), last lines of stderr:\n" + worker.getStderrTail());
+            }
+        } finally {
+            releaseSlot(slot);
+        }
+    }
+
+    /**
+     * Get the worker of a process slot, starting it if needed
+     *
+     * @param context the task context
+     * @param slot the process slot
+     * @return a running worker
+     * @throws IOException
+     */
+    private Worker getWorker(Context context, int slot) throws IOException {
+
+        String command = getConfig().getFinalWorkerCommand();
+        command = JobConfig.replaceVariable(command, JobConfig.THREADS_VARIABLE, Integer.toString(getThreads()));
+        command = JobConfig.replaceVariable(command, JobConfig.SLOT_VARIABLE, Integer.toString(slot));
+
+        synchronized (workers) {
+            if (!shutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        stopWorkers();
+                    }
+                });
+                shutdownHookAdded = true;
+            }
+
+            Worker worker = workers.get(slot);
+
+            if (worker != null && !worker.isAlive()) {
+                Hadoopizer.logger.warning("Worker of slot " + slot + " has exited, last lines of stderr:\n" + worker.getStderrTail());
+                worker.stop();
+                worker = null;
+            }
+
+            if (worker != null && !worker.getCommand().equals(command)) {
+                // The static input files may have been localized to different paths for this task
+                worker.stop();
+                worker = null;
+            }
+
+            if (worker == null) {
+                worker = new Worker(command, context.getConfiguration());
+                worker.start(new File(System.getProperty("java.io.tmpdir")));
+                workers.put(slot, worker);
+            }
+            else {
+                Hadoopizer.logger.info("Reusing the worker of slot " + slot);
+            }
+
+            return worker;
+        }
+    }
+
+    /**
+     * Stop the worker of a process slot, a new one will be started for the next command
+     *
+     * @param slot the process slot
+     */
+    private void removeWorker(int slot) {
+
+        synchronized (workers) {
+            Worker worker = workers.remove(slot);
+            if (worker != null)
+                worker.stop();
+        }
+    }
+
+    /**
+     * Stop all the workers of this JVM
+     */
+    private static void stopWorkers() {
+
+        synchronized (workers) {
+            for (Worker worker : workers.values()) {
+                worker.stop();
+            }
+            workers.clear();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.genouest.hadoopizer.output;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.genouest.hadoopizer.io.ObjectWritableComparable;
+
+public class BAMOutputFormat extends HadoopizerOutputFormat {
+
+    @Override
+    public RecordWriter<ObjectWritableComparable, ObjectWritable> getRecordWriter(TaskAttemptContext context) throws IOException, InterruptedException {
+        
+        // BAM files are always compressed with BGZF, ignore the output compression settings
+        Path path = getDefaultWorkFile(context, "." + getExtension());
+        
+        return getRecordWriter(context, path, null);
+    }
+
+    @Override
+    public RecordWriter<ObjectWritableComparable, ObjectWritable> getRecordWriter(TaskAttemptContext context, Path path, CompressionCodec codec) throws IOException, InterruptedException {
+        
+        Configuration conf = context.getConfiguration();
+        
+        FileSystem fs = path.getFileSystem(conf);
+
+        FSDataOutputStream out = fs.create(path, true);
+        
+        return new BAMRecordWriter(out, context, getHeaderTempFile(conf, path));
+    }
+
+    @Override
+    public RecordWriter<ObjectWritableComparable, ObjectWritable> getRecordWriter(TaskAttemptContext context, DataOutputStream out, Path headerTempFile) throws IOException, InterruptedException {
+        
+        return new BAMRecordWriter(out, context, headerTempFile);
+    }
+
+    @Override
+    public String getId() {
+        
+        return "bam";
+    }
+
+    @Override
+    public String getExtension() {
+        
+        return "bam";
+    }
+}
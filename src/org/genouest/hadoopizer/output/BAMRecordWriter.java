@@ -0,0 +1,292 @@
+package org.genouest.hadoopizer.output;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTextHeaderCodec;
+import net.sf.samtools.util.BufferedLineReader;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.genouest.hadoopizer.io.BAMRecordWritable;
+import org.genouest.hadoopizer.io.ObjectWritableComparable;
+
+/**
+ * Write BAM records to a BGZF compressed BAM file, the blocks being compressed on a pool of threads (see {@link BGZFOutputStream}).
+ * The header temp file contains the SAM text header, it is converted to a binary BAM header before the first record.
+ * SAM text records (read by the 'sam' parser) are converted to BAM records.
+ */
+public class BAMRecordWriter extends HadoopizerRecordWriter {
+
+    private OutputStream out;
+    private Path headerTempFile;
+    private Configuration conf;
+    private boolean headerWritten = false;
+    private SAMFileHeader header;
+    private byte[] intBuffer = new byte[4];
+
+    private BAMRecordCodec samCodec; // Created when the first SAM record is written
+    private ByteArrayOutputStream samEncoded = new ByteArrayOutputStream();
+
+    public BAMRecordWriter(OutputStream out, TaskAttemptContext context, Path headerTempFile) {
+
+        this.conf = context.getConfiguration();
+        this.out = new BGZFOutputStream(out, conf.getInt("hadoopizer.bam.compression.level", 5), conf.getInt("hadoopizer.bam.compression.threads", 2));
+        
+        // we cannot prepend the header now because it is not filled yet
+        this.headerTempFile = headerTempFile;
+    }
+
+    @Override
+    public void write(ObjectWritableComparable key, ObjectWritable value) throws IOException, InterruptedException {
+
+        if (!headerWritten) {
+            header = readSAMHeader(headerTempFile, conf);
+            writeBAMHeader(header);
+            headerWritten = true;
+        }
+        
+        Object record = value.get();
+        if (record instanceof BAMRecordWritable) {
+            BAMRecordWritable bamRecord = (BAMRecordWritable) record;
+            writeInt(bamRecord.getLength());
+            out.write(bamRecord.getBytes(), 0, bamRecord.getLength());
+        }
+        else if (record instanceof Text) {
+            writeSAMRecord(key.get().toString(), record.toString());
+        }
+        else {
+            throw new IOException("Cannot write " + record.getClass().getName() + " records to a BAM file, only BAM and SAM records are supported");
+        }
+    }
+
+    /**
+     * Convert a SAM text record to a BAM record, and write it
+     * 
+     * @param name the name of the read
+     * @param line the other fields of the SAM line
+     * @throws IOException
+     */
+    private void writeSAMRecord(String name, String line) throws IOException {
+
+        if (samCodec == null) {
+            samCodec = new BAMRecordCodec(header);
+            samCodec.setOutputStream(samEncoded);
+        }
+        
+        String[] fields = line.split("\t");
+        if (fields.length < 10)
+            throw new IOException("Failed to parse SAM record: not enough fields for read " + name);
+        
+        try {
+            SAMRecord record = new SAMRecord(header);
+            record.setReadName(name);
+            record.setFlags(Integer.parseInt(fields[0]));
+            record.setReferenceName(fields[1]);
+            record.setAlignmentStart(Integer.parseInt(fields[2]));
+            record.setMappingQuality(Integer.parseInt(fields[3]));
+            record.setCigarString(fields[4]);
+            record.setMateReferenceName(fields[5].equals("=") ? fields[1] : fields[5]);
+            record.setMateAlignmentStart(Integer.parseInt(fields[6]));
+            record.setInferredInsertSize(Integer.parseInt(fields[7]));
+            record.setReadString(fields[8]);
+            record.setBaseQualityString(fields[9]);
+            
+            for (int i = 10; i < fields.length; i++) {
+                setTag(record, fields[i]);
+            }
+            
+            // The codec writes the block_size field too
+            samEncoded.reset();
+            samCodec.encode(record);
+            samEncoded.writeTo(out);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Failed to parse SAM record for read " + name, e);
+        }
+    }
+
+    /**
+     * Parse an optional field of a SAM record (TAG:TYPE:VALUE)
+     * 
+     * @param record the record to add the tag to
+     * @param field the optional field
+     * @throws IOException
+     */
+    private void setTag(SAMRecord record, String field) throws IOException {
+
+        if (field.length() < 5 || field.charAt(2) != ':' || field.charAt(4) != ':')
+            throw new IOException("Failed to parse SAM optional field: " + field);
+        
+        String tag = field.substring(0, 2);
+        char type = field.charAt(3);
+        String value = field.substring(5);
+        
+        switch (type) {
+            case 'A':
+                record.setAttribute(tag, value.charAt(0));
+                break;
+            case 'i':
+                long l = Long.parseLong(value);
+                if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE)
+                    record.setAttribute(tag, (int) l);
+                else
+                    record.setAttribute(tag, l);
+                break;
+            case 'f':
+                record.setAttribute(tag, Float.parseFloat(value));
+                break;
+            case 'Z':
+                record.setAttribute(tag, value);
+                break;
+            case 'H':
+                byte[] bytes = new byte[value.length() / 2];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = (byte) Integer.parseInt(value.substring(2 * i, 2 * i + 2), 16);
+                }
+                record.setAttribute(tag, bytes);
+                break;
+            case 'B':
+                record.setAttribute(tag, parseArray(value));
+                break;
+            default:
+                throw new IOException("Unsupported type in SAM optional field: " + field);
+        }
+    }
+
+    /**
+     * Parse the value of an array optional field (subtype followed by the comma separated values)
+     * 
+     * @param value the value of the field
+     * @return an array of the Java type corresponding to the subtype
+     * @throws IOException
+     */
+    private Object parseArray(String value) throws IOException {
+
+        String[] values = value.split(",");
+        int n = values.length - 1;
+        switch (values[0].charAt(0)) {
+            case 'c':
+            case 'C':
+                byte[] bytes = new byte[n];
+                for (int i = 0; i < n; i++) {
+                    bytes[i] = (byte) Integer.parseInt(values[i + 1]);
+                }
+                return bytes;
+            case 's':
+            case 'S':
+                short[] shorts = new short[n];
+                for (int i = 0; i < n; i++) {
+                    shorts[i] = (short) Integer.parseInt(values[i + 1]);
+                }
+                return shorts;
+            case 'i':
+            case 'I':
+                int[] ints = new int[n];
+                for (int i = 0; i < n; i++) {
+                    ints[i] = (int) Long.parseLong(values[i + 1]);
+                }
+                return ints;
+            case 'f':
+                float[] floats = new float[n];
+                for (int i = 0; i < n; i++) {
+                    floats[i] = Float.parseFloat(values[i + 1]);
+                }
+                return floats;
+            default:
+                throw new IOException("Unsupported array type in SAM optional field: " + value);
+        }
+    }
+
+    /**
+     * Write the binary BAM header
+     * 
+     * @param header the header to write
+     * @throws IOException
+     */
+    private void writeBAMHeader(SAMFileHeader header) throws IOException {
+
+        out.write(new byte[] {'B', 'A', 'M', 1});
+        
+        StringWriter textWriter = new StringWriter();
+        new SAMTextHeaderCodec().encode(textWriter, header);
+        byte[] text = textWriter.toString().getBytes();
+        writeInt(text.length);
+        out.write(text);
+        
+        writeInt(header.getSequenceDictionary().size());
+        for (SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+            byte[] name = sequence.getSequenceName().getBytes();
+            writeInt(name.length + 1);
+            out.write(name);
+            out.write(0);
+            writeInt(sequence.getSequenceLength());
+        }
+    }
+
+    /**
+     * Write a little endian int32
+     * 
+     * @param value the value to write
+     * @throws IOException
+     */
+    private void writeInt(int value) throws IOException {
+
+        intBuffer[0] = (byte) value;
+        intBuffer[1] = (byte) (value >>> 8);
+        intBuffer[2] = (byte) (value >>> 16);
+        intBuffer[3] = (byte) (value >>> 24);
+        out.write(intBuffer, 0, 4);
+    }
+
+    /**
+     * Read a SAM text header saved in a header temp file
+     * 
+     * @param headerTempFile the header temp file (can be null)
+     * @param conf the job configuration
+     * @return the header, empty if there is no header temp file
+     * @throws IOException
+     */
+    static SAMFileHeader readSAMHeader(Path headerTempFile, Configuration conf) throws IOException {
+
+        if (headerTempFile == null)
+            return new SAMFileHeader();
+        
+        FileSystem fs = headerTempFile.getFileSystem(conf);
+        if (!fs.exists(headerTempFile))
+            return new SAMFileHeader();
+
+        FSDataInputStream in = fs.open(headerTempFile);
+        try {
+            SAMTextHeaderCodec codec = new SAMTextHeaderCodec();
+            codec.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+            
+            return codec.decode(new BufferedLineReader(in), headerTempFile.toString());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void close(TaskAttemptContext context) throws IOException, InterruptedException {
+
+        if (!headerWritten) {
+            // Even an empty BAM file needs a header
+            writeBAMHeader(readSAMHeader(headerTempFile, conf));
+            headerWritten = true;
+        }
+        
+        out.close();
+    }
+}
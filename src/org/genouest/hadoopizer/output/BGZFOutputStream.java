@@ -0,0 +1,246 @@
+package org.genouest.hadoopizer.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compress a stream with BGZF (block gzip, as used by BAM files), compressing the blocks on a pool of threads.
+ * Blocks are written in order: at most 2 blocks per thread are waiting for their compression at the same time.
+ * With a single thread, the blocks are compressed by the writing thread.
+ */
+public class BGZFOutputStream extends OutputStream {
+
+    private static final int MAX_INPUT_SIZE = 0xff00; // Leaves room for the header, footer and deflate overhead in a 64k block
+    private static final int MAX_BLOCK_SIZE = 0x10000;
+    private static final int HEADER_SIZE = 18;
+    private static final int FOOTER_SIZE = 8;
+
+    // Empty block marking the end of a BGZF file
+    private static final byte[] EOF_BLOCK = new byte[] {
+        0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+        0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+    };
+
+    private OutputStream out;
+    private int level;
+    private int threads;
+    private ExecutorService executor;
+    private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+    private byte[] buffer = new byte[MAX_INPUT_SIZE];
+    private int bufferLength = 0;
+    private boolean closed = false;
+
+    /**
+     * Create a BGZFOutputStream
+     *
+     * @param out the stream to write the compressed blocks to
+     * @param level the compression level (0-9)
+     * @param threads the number of compression threads
+     */
+    public BGZFOutputStream(OutputStream out, int level, int threads) {
+
+        this.out = out;
+        this.level = level;
+        this.threads = Math.max(1, threads);
+
+        if (this.threads > 1) {
+            executor = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "bgzf compressor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+
+        if (bufferLength == buffer.length)
+            submitBlock();
+
+        buffer[bufferLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+
+        while (len > 0) {
+            if (bufferLength == buffer.length)
+                submitBlock();
+
+            int size = Math.min(len, buffer.length - bufferLength);
+            System.arraycopy(b, off, buffer, bufferLength, size);
+            bufferLength += size;
+            off += size;
+            len -= size;
+        }
+    }
+
+    /**
+     * Compress the buffered data (in a new block) and write all the pending blocks
+     */
+    @Override
+    public void flush() throws IOException {
+
+        if (bufferLength > 0)
+            submitBlock();
+
+        while (!pending.isEmpty()) {
+            writeNextBlock();
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Write the remaining blocks and the end of file marker, then close the underlying stream
+     */
+    @Override
+    public void close() throws IOException {
+
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            flush();
+            out.write(EOF_BLOCK);
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    /**
+     * Compress the buffer in a new block
+     *
+     * @throws IOException
+     */
+    private void submitBlock() throws IOException {
+
+        final byte[] data = buffer;
+        final int length = bufferLength;
+        buffer = new byte[MAX_INPUT_SIZE];
+        bufferLength = 0;
+
+        if (executor == null) {
+            out.write(compressBlock(data, length, level));
+            return;
+        }
+
+        pending.add(executor.submit(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                return compressBlock(data, length, level);
+            }
+        }));
+
+        while (pending.size() > 2 * threads) {
+            writeNextBlock();
+        }
+    }
+
+    /**
+     * Wait for the oldest pending block to be compressed, and write it
+     *
+     * @throws IOException
+     */
+    private void writeNextBlock() throws IOException {
+
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while compressing a BGZF block", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress a BGZF block", e.getCause());
+        }
+    }
+
+    /**
+     * Compress data to a BGZF block
+     *
+     * @param data the data to compress
+     * @param length the length of the data
+     * @param level the compression level
+     * @return the complete block (header, compressed data and footer)
+     */
+    private static byte[] compressBlock(byte[] data, int length, int level) {
+
+        byte[] block = new byte[MAX_BLOCK_SIZE];
+        int compressedSize = deflate(data, length, level, block);
+        if (compressedSize < 0) {
+            // Data that doesn't compress well can grow a little: store it
+            compressedSize = deflate(data, length, Deflater.NO_COMPRESSION, block);
+        }
+
+        int blockSize = HEADER_SIZE + compressedSize + FOOTER_SIZE;
+
+        // gzip header, with the BC extra field holding the block size - 1
+        block[0] = 0x1f;
+        block[1] = (byte) 0x8b;
+        block[2] = 0x08; // Deflate
+        block[3] = 0x04; // Extra field present
+        block[9] = (byte) 0xff; // Unknown OS
+        block[10] = 0x06; // Extra field length
+        block[12] = 'B';
+        block[13] = 'C';
+        block[14] = 0x02; // Subfield length
+        block[16] = (byte) (blockSize - 1);
+        block[17] = (byte) ((blockSize - 1) >>> 8);
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        writeInt(block, HEADER_SIZE + compressedSize, (int) crc.getValue());
+        writeInt(block, HEADER_SIZE + compressedSize + 4, length);
+
+        byte[] result = new byte[blockSize];
+        System.arraycopy(block, 0, result, 0, blockSize);
+
+        return result;
+    }
+
+    /**
+     * Deflate data after the header of a block
+     *
+     * @param data the data to compress
+     * @param length the length of the data
+     * @param level the compression level
+     * @param block the block to write to
+     * @return the compressed size, -1 if it doesn't fit in the block
+     */
+    private static int deflate(byte[] data, int length, int level, byte[] block) {
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+
+            int maxSize = MAX_BLOCK_SIZE - HEADER_SIZE - FOOTER_SIZE;
+            int compressedSize = deflater.deflate(block, HEADER_SIZE, maxSize);
+
+            return deflater.finished() ? compressedSize : -1;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeInt(byte[] b, int offset, int value) {
+
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >>> 8);
+        b[offset + 2] = (byte) (value >>> 16);
+        b[offset + 3] = (byte) (value >>> 24);
+    }
+}
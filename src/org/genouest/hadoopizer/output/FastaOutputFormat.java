@@ -31,6 +31,12 @@ public class FastaOutputFormat extends HadoopizerOutputFormat {
         }
     }
 
+    @Override
+    public RecordWriter<ObjectWritableComparable, ObjectWritable> getRecordWriter(TaskAttemptContext context, DataOutputStream out, Path headerTempFile) throws IOException, InterruptedException {
+        
+        return new FastaRecordWriter(out, context, headerTempFile);
+    }
+
     @Override
     public String getId() {
         
@@ -6,8 +6,11 @@ import java.io.IOException;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.genouest.hadoopizer.io.FileBackedText;
 import org.genouest.hadoopizer.io.ObjectWritableComparable;
+import org.genouest.hadoopizer.io.SequenceRecordWritable;
 
 public class FastaRecordWriter extends HadoopizerRecordWriter {
 
@@ -32,9 +35,24 @@ public class FastaRecordWriter extends HadoopizerRecordWriter {
             headerTempFile = null;
         }
         
-        String line = ">" + key.get().toString() + "\n";
-        line += value.get().toString() + "\n";
-        out.write(line.getBytes());
+        out.write((">" + key.get().toString() + "\n").getBytes());
+
+        // Sequences can be very long: avoid converting them to String
+        Object sequence = value.get();
+        if (sequence instanceof FileBackedText) {
+            ((FileBackedText) sequence).writeTo(out);
+        }
+        else if (sequence instanceof SequenceRecordWritable) {
+            Text bases = ((SequenceRecordWritable) sequence).getBases();
+            out.write(bases.getBytes(), 0, bases.getLength());
+        }
+        else if (sequence instanceof Text) {
+            out.write(((Text) sequence).getBytes(), 0, ((Text) sequence).getLength());
+        }
+        else {
+            out.write(sequence.toString().getBytes());
+        }
+        out.write('\n');
     }
 
     @Override
@@ -31,6 +31,12 @@ public class FastqOutputFormat extends HadoopizerOutputFormat {
         }
     }
     
+    @Override
+    public RecordWriter<ObjectWritableComparable, ObjectWritable> getRecordWriter(TaskAttemptContext context, DataOutputStream out, Path headerTempFile) throws IOException, InterruptedException {
+        
+        return new FastqRecordWriter(out, context, headerTempFile);
+    }
+
     @Override
     public String getId() {
         
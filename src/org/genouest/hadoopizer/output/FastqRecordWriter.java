@@ -8,6 +8,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.genouest.hadoopizer.io.ObjectWritableComparable;
+import org.genouest.hadoopizer.io.SequenceRecordWritable;
 
 public class FastqRecordWriter extends HadoopizerRecordWriter {
 
@@ -34,8 +35,20 @@ public class FastqRecordWriter extends HadoopizerRecordWriter {
             headerTempFile = null;
         }
         
+        Object record = value.get();
+        if (record instanceof SequenceRecordWritable) {
+            // Written as bytes, without converting the record to String
+            SequenceRecordWritable sequenceRecord = (SequenceRecordWritable) record;
+            out.write('@');
+            out.write(sequenceRecord.getName().getBytes(), 0, sequenceRecord.getName().getLength());
+            out.write('\n');
+            sequenceRecord.writeText(out);
+            out.write('\n');
+            return;
+        }
+        
         String line = "@" + key.get().toString() + "\n";
-        line += value.get().toString() + "\n";
+        line += record.toString() + "\n";
         out.write(line.getBytes());
     }
 
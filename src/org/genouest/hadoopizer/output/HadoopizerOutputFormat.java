@@ -1,5 +1,6 @@
 package org.genouest.hadoopizer.output;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 import org.apache.hadoop.conf.Configuration;
@@ -93,4 +94,16 @@ public abstract class HadoopizerOutputFormat extends FileOutputFormat<ObjectWrit
      * @throws InterruptedException
      */
     public abstract RecordWriter<ObjectWritableComparable, ObjectWritable> getRecordWriter(TaskAttemptContext context, Path path, CompressionCodec codec) throws IOException, InterruptedException;
+
+    /**
+     * Get a RecordWriter writing to an already opened stream (a named pipe or the stdin of a running command for example)
+     *
+     * @param context the information about the current task
+     * @param out the stream to write to
+     * @param headerTempFile Path containing the header to prepend to the output (null if no header)
+     * @return a RecordWriter to write output to the given stream
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public abstract RecordWriter<ObjectWritableComparable, ObjectWritable> getRecordWriter(TaskAttemptContext context, DataOutputStream out, Path headerTempFile) throws IOException, InterruptedException;
 }
@@ -31,6 +31,12 @@ public class SAMOutputFormat extends HadoopizerOutputFormat {
         }
     }
 
+    @Override
+    public RecordWriter<ObjectWritableComparable, ObjectWritable> getRecordWriter(TaskAttemptContext context, DataOutputStream out, Path headerTempFile) throws IOException, InterruptedException {
+        
+        return new SAMRecordWriter(out, context, headerTempFile);
+    }
+
     @Override
     public String getId() {
         
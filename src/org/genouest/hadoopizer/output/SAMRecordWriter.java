@@ -1,12 +1,16 @@
 package org.genouest.hadoopizer.output;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
+import net.sf.samtools.BAMRecordCodec;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.genouest.hadoopizer.io.BAMRecordWritable;
 import org.genouest.hadoopizer.io.ObjectWritableComparable;
 
 public class SAMRecordWriter extends HadoopizerRecordWriter {
@@ -14,6 +18,9 @@ public class SAMRecordWriter extends HadoopizerRecordWriter {
     private DataOutputStream out;
     private Path headerTempFile;
     private Configuration conf;
+    private Path bamHeaderFile;
+    private BAMRecordCodec bamCodec; // Created when the first BAM record is written
+    private byte[] bamBuffer = new byte[0];
 
     public SAMRecordWriter(DataOutputStream out, TaskAttemptContext context, Path headerTempFile) {
 
@@ -21,6 +28,7 @@ public class SAMRecordWriter extends HadoopizerRecordWriter {
         
         // we cannot prepend the header now because it is not filled yet
         this.headerTempFile = headerTempFile;
+        this.bamHeaderFile = headerTempFile;
         this.conf = context.getConfiguration();
     }
 
@@ -32,10 +40,42 @@ public class SAMRecordWriter extends HadoopizerRecordWriter {
             headerTempFile = null;
         }
         
+        if (value.get() instanceof BAMRecordWritable) {
+            out.write(decodeBAMRecord((BAMRecordWritable) value.get()).getBytes());
+            return;
+        }
+        
         String line = key.get().toString() + "\t" + value.get().toString() + "\n";
         out.write(line.getBytes());
     }
 
+    /**
+     * Convert a binary BAM record to a SAM line, using the header to find the reference names
+     * 
+     * @param record the BAM record
+     * @return the SAM line, with its line break
+     * @throws IOException
+     */
+    private String decodeBAMRecord(BAMRecordWritable record) throws IOException {
+
+        if (bamCodec == null)
+            bamCodec = new BAMRecordCodec(BAMRecordWriter.readSAMHeader(bamHeaderFile, conf));
+        
+        // The codec expects the block_size field before the record
+        int length = record.getLength();
+        if (bamBuffer.length < length + 4)
+            bamBuffer = new byte[length + 4];
+        bamBuffer[0] = (byte) length;
+        bamBuffer[1] = (byte) (length >>> 8);
+        bamBuffer[2] = (byte) (length >>> 16);
+        bamBuffer[3] = (byte) (length >>> 24);
+        System.arraycopy(record.getBytes(), 0, bamBuffer, 4, length);
+        
+        bamCodec.setInputStream(new ByteArrayInputStream(bamBuffer, 0, length + 4));
+        
+        return bamCodec.decode().getSAMString();
+    }
+
     @Override
     public void close(TaskAttemptContext context) throws IOException, InterruptedException {
 
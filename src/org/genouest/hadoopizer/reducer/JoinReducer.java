@@ -5,10 +5,14 @@ import java.util.ArrayList;
 
 import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.genouest.hadoopizer.io.FileBackedText;
 import org.genouest.hadoopizer.io.ObjectWritableComparable;
+import org.genouest.hadoopizer.io.SequenceRecordArrayWritable;
+import org.genouest.hadoopizer.io.SequenceRecordWritable;
 
 /**
  * Reducer that merge multiple values having a same key into an array.
+ * {@link SequenceRecordWritable} values are merged into a {@link SequenceRecordArrayWritable}.
  */
 public class JoinReducer extends Reducer<ObjectWritableComparable, ObjectWritable, ObjectWritableComparable, ObjectWritable> {
 
@@ -16,16 +20,31 @@ public class JoinReducer extends Reducer<ObjectWritableComparable, ObjectWritabl
     protected void reduce(ObjectWritableComparable key, Iterable<ObjectWritable> values, Context context) throws IOException, InterruptedException {       
 
         ArrayList<ObjectWritable> list = new ArrayList<ObjectWritable>();
+        ArrayList<SequenceRecordWritable> records = new ArrayList<SequenceRecordWritable>();
         for (ObjectWritable value : values) {
             // This is a subtlety in hadoop: it reuses the same 'value' object on each iteration, so we need to copy it instead of writing:
             // list.add(value);
             // See http://cornercases.wordpress.com/2011/08/18/hadoop-object-reuse-pitfall-all-my-reducer-values-are-the-same/ for more infos
             
-            list.add(new ObjectWritable(value.get()));
+            if (value instanceof SequenceRecordWritable) {
+                SequenceRecordWritable record = new SequenceRecordWritable();
+                record.set((SequenceRecordWritable) value);
+                records.add(record);
+            }
+            else {
+                list.add(new ObjectWritable(value.get()));
+            }
         }
         
-        ObjectWritable out = new ObjectWritable(ObjectWritable[].class, (ObjectWritable[]) list.toArray(new ObjectWritable[0]));
+        ObjectWritable out;
+        if (!records.isEmpty())
+            out = new SequenceRecordArrayWritable(records.toArray(new SequenceRecordWritable[0]));
+        else
+            out = new ObjectWritable(ObjectWritable[].class, (ObjectWritable[]) list.toArray(new ObjectWritable[0]));
         
         context.write(key, out);
+
+        // The long sequences of the values were deserialized to temp files, they are now in the output
+        FileBackedText.deleteReadFiles();
     }
 }
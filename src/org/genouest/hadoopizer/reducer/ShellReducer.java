@@ -5,6 +5,7 @@ import java.io.IOException;
 import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.genouest.hadoopizer.io.FileBackedText;
 import org.genouest.hadoopizer.io.ObjectWritableComparable;
 
 public class ShellReducer extends Reducer<ObjectWritableComparable, ObjectWritable, ObjectWritableComparable, ObjectWritable> {
@@ -22,6 +23,9 @@ public class ShellReducer extends Reducer<ObjectWritableComparable, ObjectWritab
         
         for (ObjectWritable valuein : values) {
             mos.write(key.getKeyType(), key, valuein);
+
+            // A long sequence was deserialized to a temp file, it is now in the output
+            FileBackedText.deleteReadFiles();
         }
     }
     
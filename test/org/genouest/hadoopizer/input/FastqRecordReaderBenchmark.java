@@ -0,0 +1,351 @@
+package org.genouest.hadoopizer.input;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.ObjectWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.LineReader;
+import org.genouest.hadoopizer.io.ObjectWritableComparable;
+import org.genouest.hadoopizer.io.TaggedObjectWritable;
+
+/**
+ * Compare the throughput and the allocations of {@link FastqRecordReader} with the String based reader it replaced.
+ * Each reader reads a generated fastq file several times, calling getCurrentKey() and getCurrentValue() like the map loop.
+ * The allocated bytes are only reported on JVMs providing com.sun.management.ThreadMXBean.
+ *
+ * Usage: FastqRecordReaderBenchmark [records] [runs]
+ */
+public class FastqRecordReaderBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        int nbRecords = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        File file = File.createTempFile("fastqbench", ".fastq");
+        file.deleteOnExit();
+        long length = writeFastq(file, nbRecords);
+
+        Configuration conf = new Configuration();
+        conf.set("hadoopizer.job.config", "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                + "<job><command>cat ${reads} > ${res}</command>"
+                + "<input id=\"reads\" split=\"true\"><url splitter=\"fastq\">" + file.getAbsolutePath() + "</url></input>"
+                + "<outputs><url>" + file.getAbsolutePath() + ".out</url><output id=\"res\" reducer=\"fastq\" /></outputs></job>");
+        FileSplit split = new FileSplit(new Path(file.toURI()), 0, length, null);
+
+        System.out.println(nbRecords + " records of 100 bases (" + length / 1024 / 1024 + " MB), best of " + runs + " runs after a warmup run");
+        for (int i = 0; i < 2; i++) { // Twice to see the effect of the order
+            report("legacy", conf, split, runs, false);
+            report("current", conf, split, runs, true);
+        }
+    }
+
+    /**
+     * Read the split several times with a reader and print the best throughput
+     *
+     * @param name the name of the reader in the report
+     * @param conf the job configuration
+     * @param split the split to read
+     * @param runs the number of measured runs
+     * @param current true to use {@link FastqRecordReader}, false to use {@link LegacyFastqRecordReader}
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static void report(String name, Configuration conf, FileSplit split, int runs, boolean current) throws IOException, InterruptedException {
+
+        read(conf, split, current); // Warmup
+
+        long best = Long.MAX_VALUE;
+        long records = 0;
+        long gcCount = getGcCount();
+        long gcTime = getGcTime();
+        long allocated = getAllocatedBytes();
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            records = read(conf, split, current);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        gcCount = getGcCount() - gcCount;
+        gcTime = getGcTime() - gcTime;
+        allocated = allocated < 0 ? -1 : getAllocatedBytes() - allocated;
+
+        System.out.println(String.format("%-8s %10.0f records/s  %6.1f MB/s  %5d GCs (%d ms)  %s", name,
+                records / (best / 1e9), split.getLength() / (best / 1e9) / 1024 / 1024, gcCount, gcTime,
+                allocated < 0 ? "allocations not available" : String.format("%.1f bytes allocated/record", allocated / (double) (records * runs))));
+    }
+
+    /**
+     * Read all the records of a split
+     *
+     * @return the number of records
+     */
+    private static long read(Configuration conf, FileSplit split, boolean current) throws IOException, InterruptedException {
+
+        HadoopizerRecordReader reader = current ? new FastqRecordReader(null, conf) : new LegacyFastqRecordReader(null, conf);
+        long records = 0;
+        try {
+            reader.initialize(split, new TaskAttemptContext(conf, new TaskAttemptID()));
+            while (reader.nextKeyValue()) {
+                if (reader.getCurrentKey() != null && reader.getCurrentValue() != null)
+                    records++;
+            }
+        } finally {
+            reader.close();
+        }
+
+        return records;
+    }
+
+    private static long getGcCount() {
+
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(gc.getCollectionCount(), 0);
+        }
+
+        return count;
+    }
+
+    private static long getGcTime() {
+
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(gc.getCollectionTime(), 0);
+        }
+
+        return time;
+    }
+
+    /**
+     * Get the bytes allocated by the current thread
+     *
+     * @return the allocated bytes, -1 if not available on this JVM
+     */
+    private static long getAllocatedBytes() {
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Write a fastq file with random reads of 100 bases
+     *
+     * @param file the file to write
+     * @param nbRecords the number of reads
+     * @return the size of the file
+     * @throws IOException
+     */
+    private static long writeFastq(File file, int nbRecords) throws IOException {
+
+        Random random = new Random(42);
+        char[] bases = new char[100];
+        char[] qualities = new char[100];
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            for (int i = 0; i < nbRecords; i++) {
+                for (int j = 0; j < bases.length; j++) {
+                    bases[j] = "ACGT".charAt(random.nextInt(4));
+                    qualities[j] = (char) ('!' + random.nextInt(41));
+                }
+
+                out.write("@read" + i + "/1 length=100\n");
+                out.write(bases);
+                out.write("\n+\n");
+                out.write(qualities);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+
+        return file.length();
+    }
+
+    /**
+     * The fastq reader before the records were read into reused buffers: each line is converted to a String,
+     * the record is rebuilt by concatenation and new key and value objects are created for each record.
+     * Only kept to measure the difference, for uncompressed files.
+     */
+    static class LegacyFastqRecordReader extends HadoopizerRecordReader {
+
+        private long start;
+        private long end;
+        private long pos;
+
+        private boolean reachedEof = false;
+
+        private LineReader lineReader;
+        private ArrayList<String> currentRecord = new ArrayList<String>();
+
+        private Text recordKey = new Text();
+        private Text recordValue = new Text();
+
+        public LegacyFastqRecordReader(Path headerTempFile, Configuration conf) {
+
+            super(headerTempFile, conf);
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+
+            FileSplit fileSplit = (FileSplit) split;
+            Configuration conf = context.getConfiguration();
+
+            start = fileSplit.getStart();
+            end = start + fileSplit.getLength();
+
+            Path path = fileSplit.getPath();
+            FileSystem fs = path.getFileSystem(conf);
+            FSDataInputStream fsin = fs.open(path);
+
+            lineReader = new LineReader(fsin, conf);
+            if (start != 0) {
+                --start;
+                fsin.seek(start);
+            }
+
+            pos = start;
+
+            if (start != 0)
+                shiftFastQRecord();
+
+            headerFinished();
+
+            trackOrigin(conf, path);
+        }
+
+        private void findPotentialFastQRecord() throws IOException {
+
+            currentRecord.clear();
+
+            Text newLine = new Text("");
+            int foundLines = 0;
+            while (foundLines < 4) {
+                int read = lineReader.readLine(newLine);
+                if (read > 0) {
+                    pos += read;
+                    if (newLine.getLength() > 0) {
+                        currentRecord.add(newLine.toString());
+                        foundLines++;
+                    }
+                }
+                else {
+                    reachedEof = true;
+                    break;
+                }
+            }
+        }
+
+        private void shiftFastQRecord() throws IOException {
+
+            if (!currentRecord.isEmpty())
+                currentRecord.remove(0);
+
+            Text newLine = new Text("");
+            int foundLines = 0;
+            while (foundLines < 1) {
+                int read = lineReader.readLine(newLine);
+                if (read > 0) {
+                    pos += read;
+                    if (newLine.getLength() > 0) {
+                        currentRecord.add(newLine.toString());
+                        foundLines++;
+                    }
+                }
+                else {
+                    reachedEof = true;
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException, InterruptedException {
+
+            if ((pos >= end) || reachedEof)
+                return false;
+
+            findPotentialFastQRecord();
+
+            if (currentRecord.size() != 4)
+                return false;
+
+            int tries = 0;
+            while (tries < 4) {
+                if (currentRecord.get(0).startsWith("@") && currentRecord.get(2).startsWith("+") && (currentRecord.get(1).length() == currentRecord.get(3).length())) {
+                    String record = currentRecord.get(1) + "\n" + currentRecord.get(2) + "\n" + currentRecord.get(3);
+
+                    recordKey.set(currentRecord.get(0).substring(1));
+                    recordValue.set(record);
+
+                    return true;
+                }
+                else {
+                    shiftFastQRecord();
+
+                    if (currentRecord.size() != 4)
+                        return false;
+
+                    tries++;
+                }
+            }
+
+            throw new IOException("Failed to parse FastQ file");
+        }
+
+        @Override
+        public ObjectWritableComparable getCurrentKey() throws IOException, InterruptedException {
+
+            return getCurrentKey("");
+        }
+
+        @Override
+        public ObjectWritableComparable getCurrentKey(String id) throws IOException, InterruptedException {
+
+            ObjectWritableComparable key = new ObjectWritableComparable();
+            key.set(id, recordKey);
+            return key;
+        }
+
+        @Override
+        public ObjectWritable getCurrentValue() throws IOException, InterruptedException {
+
+            TaggedObjectWritable data = new TaggedObjectWritable(getInputId(), new ObjectWritable(recordValue));
+            return new ObjectWritable(data);
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            super.close();
+
+            if (lineReader != null)
+                lineReader.close();
+        }
+
+        @Override
+        public float getProgress() throws IOException {
+
+            return start == end ? 0 : Math.min(1.0f, (pos - start) / (float) (end - start));
+        }
+    }
+}
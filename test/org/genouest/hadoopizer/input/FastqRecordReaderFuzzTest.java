@@ -0,0 +1,240 @@
+package org.genouest.hadoopizer.input;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Randomized test of the split boundaries of {@link FastqRecordReader}.
+ * Random fastq files are cut at random offsets, and each record must be read exactly once, in order, over all the splits.
+ * The qualities are mostly made of '@' and '+' so that quality lines look like name and '+' lines, and interleaved files
+ * check that the mates of a pair are never separated.
+ *
+ * Usage: FastqRecordReaderFuzzTest [iterations] [seed]
+ */
+public class FastqRecordReaderFuzzTest {
+
+    private static final String QUALITY_CHARS = "@@@@@@@@++++++++!#5AIJ"; // Mostly '@' and '+'
+    private static final String BASES = "ACGTN";
+
+    private Random random;
+    private File dir;
+
+    public FastqRecordReaderFuzzTest(long seed, File dir) {
+
+        this.random = new Random(seed);
+        this.dir = dir;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        long seed = args.length > 1 && Long.parseLong(args[1]) != 0 ? Long.parseLong(args[1]) : System.currentTimeMillis();
+
+        File dir = File.createTempFile("fastqfuzz", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            System.err.println("Cannot create the temp dir " + dir.getAbsolutePath());
+            System.exit(1);
+        }
+
+        System.out.println("Running " + iterations + " iterations with seed " + seed);
+        FastqRecordReaderFuzzTest test = new FastqRecordReaderFuzzTest(seed, dir);
+        for (int i = 0; i < iterations; i++) {
+            String error = test.run(i % 2 == 1);
+            if (error != null) {
+                // Keep the file to reproduce the failure
+                System.err.println("Iteration " + i + " failed (seed " + seed + "): " + error);
+                System.exit(1);
+            }
+        }
+
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+
+        System.out.println("All records were read exactly once");
+    }
+
+    /**
+     * Generate a random file, cut it at random offsets and read all the splits
+     *
+     * @param interleaved true to generate and read an interleaved file
+     * @return a description of the failure, or null if all the records were read exactly once
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public String run(boolean interleaved) throws IOException, InterruptedException {
+
+        File file = new File(dir, interleaved ? "interleaved.fastq" : "reads.fastq");
+        ArrayList<String> expected = writeFastq(file, interleaved);
+        long length = file.length();
+
+        // Random cut points, including splits shorter than a record
+        TreeSet<Long> cuts = new TreeSet<Long>();
+        int nbCuts = random.nextInt(12);
+        for (int i = 0; i < nbCuts && length > 1; i++) {
+            cuts.add(1 + (long) (random.nextDouble() * (length - 1)));
+        }
+        cuts.add(length);
+
+        Configuration conf = new Configuration();
+        conf.set("hadoopizer.job.config", getJobConfig(file, interleaved));
+        Path path = new Path(file.toURI()); // Qualified like the splits of a job: the reader finds its input in the job config by url
+
+        ArrayList<String> read = new ArrayList<String>();
+        long start = 0;
+        for (long cut : cuts) {
+            ArrayList<String> records;
+            try {
+                records = readSplit(conf, new FileSplit(path, start, cut - start, null));
+            } catch (IOException e) {
+                return "split " + start + "-" + cut + " of " + file + " " + cuts + ": " + e.getMessage();
+            }
+
+            if (interleaved && records.size() % 2 != 0)
+                return "split " + start + "-" + cut + " of " + file + " " + cuts + " has an odd number of records: " + records.size();
+
+            read.addAll(records);
+            start = cut;
+        }
+
+        if (!read.equals(expected)) {
+            int diff = 0;
+            while (diff < read.size() && diff < expected.size() && read.get(diff).equals(expected.get(diff))) {
+                diff++;
+            }
+
+            return read.size() + " records read instead of " + expected.size() + " from " + file + " cut at " + cuts
+                    + ", first difference at record " + diff + ": " + (diff < read.size() ? read.get(diff) : "none")
+                    + " instead of " + (diff < expected.size() ? expected.get(diff) : "none");
+        }
+
+        return null;
+    }
+
+    /**
+     * Read all the records of a split
+     *
+     * @param conf the job configuration
+     * @param split the split
+     * @return the records, as name, sequence and quality separated by newlines
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private ArrayList<String> readSplit(Configuration conf, FileSplit split) throws IOException, InterruptedException {
+
+        ArrayList<String> records = new ArrayList<String>();
+        FastqRecordReader reader = new FastqRecordReader(null, conf);
+        try {
+            reader.initialize(split, new TaskAttemptContext(conf, new TaskAttemptID()));
+            while (reader.nextKeyValue()) {
+                records.add(reader.getCurrentName() + "\n" + reader.getCurrentSequence() + "\n" + reader.getCurrentQuality());
+            }
+        } finally {
+            reader.close();
+        }
+
+        return records;
+    }
+
+    /**
+     * Write a random fastq file
+     *
+     * @param file the file to write
+     * @param interleaved true to write pairs of records with the same fragment name
+     * @return the records written, as name, sequence and quality separated by newlines
+     * @throws IOException
+     */
+    private ArrayList<String> writeFastq(File file, boolean interleaved) throws IOException {
+
+        ArrayList<String> records = new ArrayList<String>();
+        StringBuilder content = new StringBuilder();
+
+        int nbRecords = random.nextInt(40);
+        if (interleaved)
+            nbRecords -= nbRecords % 2;
+
+        String fragment = null;
+        for (int i = 0; i < nbRecords; i++) {
+            String name;
+            if (interleaved) { // Same fragment name for both mates, with or without /1 and /2, and sometimes a comment
+                if (i % 2 == 0)
+                    fragment = "frag" + (i / 2) + randomString("@+", 3);
+                name = fragment + (random.nextBoolean() ? "/" + (i % 2 + 1) : "") + (random.nextBoolean() ? " " + (i % 2 + 1) + ":N:0" : "");
+            }
+            else
+                name = "read" + i + randomString("@+", 3);
+
+            // Short records make a split see many records, long ones make the lookahead cross several splits
+            int seqLength = 1 + random.nextInt(random.nextBoolean() ? 4 : 80);
+            String sequence = randomString(BASES, seqLength);
+            String quality = randomString(QUALITY_CHARS, seqLength);
+
+            content.append('@').append(name).append('\n');
+            content.append(sequence).append('\n');
+            content.append('+').append(random.nextInt(4) == 0 ? name : "").append('\n');
+            content.append(quality).append('\n');
+
+            records.add(name + "\n" + sequence + "\n" + quality);
+        }
+
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.toString().getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+
+        return records;
+    }
+
+    /**
+     * Get a random string
+     *
+     * @param chars the characters to choose from
+     * @param length the length of the string
+     * @return the string
+     */
+    private String randomString(String chars, int length) {
+
+        char[] s = new char[length];
+        for (int i = 0; i < length; i++) {
+            s[i] = chars.charAt(random.nextInt(chars.length()));
+        }
+
+        return new String(s);
+    }
+
+    /**
+     * Get a job config with the file as splitable input (the record reader finds its input id and the interleaved flag there)
+     *
+     * @param file the input file
+     * @param interleaved true if the file is interleaved
+     * @return the job config xml
+     */
+    private String getJobConfig(File file, boolean interleaved) {
+
+        return "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                + "<job>\n"
+                + "    <command>cat ${reads} > ${res}</command>\n"
+                + "    <input id=\"reads\" split=\"true\">\n"
+                + "        <url splitter=\"fastq\"" + (interleaved ? " interleaved=\"true\"" : "") + ">" + file.getAbsolutePath() + "</url>\n"
+                + "    </input>\n"
+                + "    <outputs>\n"
+                + "        <url>" + new File(dir, "out").getAbsolutePath() + "</url>\n"
+                + "        <output id=\"res\" reducer=\"fastq\" />\n"
+                + "    </outputs>\n"
+                + "</job>\n";
+    }
+}